@@ -3,18 +3,38 @@ package com.bollin1206.superbigimageload;
 
 import android.content.Context;
 import android.graphics.PointF;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 
 /**
  * Created by wujun on 15/11/3.
+ * 一个ACTION_MOVE里批量带着上一帧以来的所有历史采样点(120/240Hz的屏幕一帧有好几个),
+ * 这里一次遍历全部消费掉,位移累加起来,每一帧只回调一次onMove。
+ * 上一个采样点只记录焦点和手指数,不再复制MotionEvent。
  */
 public class MoveGestureDetector extends  BaseGestureDetector{
-    private PointF mCurrentPointer;
-    private PointF mPrePointer;
-    private  PointF mDeltaPointer  = new PointF();
+    private final PointF mCurrentPointer = new PointF();
+    //上一个采样点的焦点,预先分配,代替MotionEvent.obtain(event)
+    private final PointF mPrePointer = new PointF();
+    private  int mPrePointerCount = 0;
 
-    private PointF mExtenalPointer  = new PointF();//记录最终结果,返回
+    private final PointF mExtenalPointer  = new PointF();//记录最终结果,返回:上次onMove消费以来累计的位移
+    //最后一个采样点的时间
+    private  long mEventTime;
+    //本帧累计了多少个采样点
+    private  int mSampleCount;
     private  OnMoveGestureListener moveGestureListener;
+
+    //每帧只分发一次累计的位移
+    private  boolean mFramePending;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePending = false;
+            dispatchMove();
+        }
+    };
+
     public MoveGestureDetector(Context context,OnMoveGestureListener moveGestureListener) {
         super(context);
         this.moveGestureListener  = moveGestureListener;
@@ -27,15 +47,18 @@ public class MoveGestureDetector extends  BaseGestureDetector{
         switch (actionCode){
             case MotionEvent.ACTION_CANCEL:
             case MotionEvent.ACTION_UP:
+                //抬手前把还没分发的位移交出去
+                cancelFrame();
+                if (mSampleCount > 0)
+                    dispatchMove();
                 moveGestureListener.onMoveEnd(this);
                 resetState();
                 break;
             case MotionEvent.ACTION_MOVE:
                 updateStateByEvent(event);
-                boolean update = moveGestureListener.onMove(this);
-                if (update){
-                    mPreMotionEvent.recycle();
-                    mPreMotionEvent= MotionEvent.obtain(event);
+                if (!mFramePending){
+                    mFramePending = true;
+                    Choreographer.getInstance().postFrameCallback(mFrameCallback);
                 }
                 break;
         }
@@ -47,8 +70,9 @@ public class MoveGestureDetector extends  BaseGestureDetector{
         switch (actionCode){
             case MotionEvent.ACTION_DOWN:
                 resetState();
-                mPreMotionEvent =MotionEvent.obtain(event);
-                updateStateByEvent(event);
+                caculateFocalPointer(event, -1, mPrePointer);
+                mPrePointerCount = event.getPointerCount();
+                mEventTime = event.getEventTime();
                 break;
             case MotionEvent.ACTION_MOVE:
                 mGestureInProgress = moveGestureListener.onMoveStart(this);
@@ -56,32 +80,72 @@ public class MoveGestureDetector extends  BaseGestureDetector{
         }
     }
 
+    /**
+     * 一次遍历历史采样点和当前采样点,把每一步的位移累加到结果里。
+     * 手指数变了的那一步不算位移,只更新上一个采样点。
+     */
     @Override
     protected void updateStateByEvent(MotionEvent event) {
-        final  MotionEvent prev  = mPreMotionEvent;
-        mPrePointer  =caculateFocalPointer(prev);
-        mCurrentPointer =caculateFocalPointer(event);
-        boolean mSkipMoveEvent = prev.getPointerCount() != event.getPointerCount();
-        mExtenalPointer.x = mSkipMoveEvent?0:mCurrentPointer.x-mPrePointer.x;
-        mExtenalPointer.y = mSkipMoveEvent?0:mCurrentPointer.y-mPrePointer.y;
+        final int count = event.getPointerCount();
+        final int historySize = event.getHistorySize();
+        for (int h = 0; h <= historySize; h++) {
+            //h == historySize 是当前采样点
+            caculateFocalPointer(event, h == historySize ? -1 : h, mCurrentPointer);
+            if (mPrePointerCount == count){
+                mExtenalPointer.x += mCurrentPointer.x - mPrePointer.x;
+                mExtenalPointer.y += mCurrentPointer.y - mPrePointer.y;
+                mSampleCount++;
+            }
+            mPrePointer.set(mCurrentPointer);
+            mPrePointerCount = count;
+        }
+        mEventTime = event.getEventTime();
+    }
+
+    /**
+     * 把累计的位移交给监听器,监听器返回true表示已经消费,否则继续累计到下一帧
+     */
+    private void dispatchMove() {
+        if (!mGestureInProgress)
+            return;
+        if (moveGestureListener.onMove(this)){
+            mExtenalPointer.set(0, 0);
+            mSampleCount = 0;
+        }
+    }
+
+    private void cancelFrame() {
+        if (mFramePending){
+            mFramePending = false;
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        }
+    }
 
+    @Override
+    protected void resetState() {
+        super.resetState();
+        cancelFrame();
+        mPrePointerCount = 0;
+        mExtenalPointer.set(0, 0);
+        mSampleCount = 0;
     }
 
     /**
      * 根据event 计算中心点
      * @param event
-     * @return
+     * @param history 历史采样点的下标,-1表示当前采样点
+     * @param out 中心点写入这里,每次move都会调用,所以不新建对象
      */
-    private PointF caculateFocalPointer(MotionEvent event) {
+    private void caculateFocalPointer(MotionEvent event, int history, PointF out) {
         final  int count  =event.getPointerCount();
         float x= 0 ,y = 0;
         for (int i = 0; i < count; i++) {
-            x +=event.getX(i);
-            y +=event.getY(i);
+            x += history < 0 ? event.getX(i) : event.getHistoricalX(i, history);
+            y += history < 0 ? event.getY(i) : event.getHistoricalY(i, history);
         }
             x /= count;
             y /= count;
-        return new PointF(x,y);
+        out.set(x,y);
     }
 
     public  float getMoveX(){
@@ -90,6 +154,30 @@ public class MoveGestureDetector extends  BaseGestureDetector{
     public  float getMoveY(){
         return  mExtenalPointer.y;
     }
+
+    /**
+     * 只消费累计位移的一部分,比如整数像素,余下的不足一像素留到下一帧继续累计,
+     * 这样慢慢拖动也不会丢位移。在onMove里调用,然后返回false。
+     */
+    public  void consume(float x, float y){
+        mExtenalPointer.x -= x;
+        mExtenalPointer.y -= y;
+        mSampleCount = 0;
+    }
+
+    /**
+     * @return 本次累计的位移包含多少个采样点
+     */
+    public  int getSampleCount(){
+        return mSampleCount;
+    }
+
+    /**
+     * @return 最后一个采样点的时间,同{@link MotionEvent#getEventTime()}
+     */
+    public  long getEventTime(){
+        return mEventTime;
+    }
     public static class SimpleMoveGestureDetector implements  OnMoveGestureListener {
         @Override
         public boolean onMoveStart(MoveGestureDetector moveGestureDetector) {
@@ -110,6 +198,11 @@ public class MoveGestureDetector extends  BaseGestureDetector{
     public  interface  OnMoveGestureListener{
         boolean onMoveStart(MoveGestureDetector moveGestureDetector);
         boolean onMoveEnd(MoveGestureDetector moveGestureDetector);
+        /**
+         * 每帧最多一次,{@link #getMoveX()}/{@link #getMoveY()}是上次返回true以来累计的位移,
+         * 减去{@link #consume(float, float)}已经消费的部分
+         * @return true表示消费了全部累计的位移
+         */
         boolean onMove(MoveGestureDetector moveGestureDetector);
     }
 }
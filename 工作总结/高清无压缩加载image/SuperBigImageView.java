@@ -6,6 +6,8 @@ import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
@@ -14,6 +16,7 @@ import com.bollin1206.superbigimageload.MoveGestureDetector;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedList;
 
 /**
  * TODO: document your custom view class.
@@ -25,14 +28,38 @@ public class SuperBigImageView extends View {
     private  int imageWidth,imageHeight;
     //绘制的区域
     private  volatile Rect rect   =new Rect();
+    //绘制区域与图片的交集
+    private final Rect visibleRect = new Rect();
     //自定义手势
     private MoveGestureDetector moveGestureDetector;
 
+    //解码线程,onDraw 只绘制已经解码好的像素
+    private HandlerThread decodeThread;
+    private Handler decodeHandler;
+    //正在解码的区域,只在UI线程访问
+    private final Rect decodingRect = new Rect();
+    //已解码的区域,最近解码的在最后,只在UI线程访问
+    private final LinkedList<DecodedRegion> decodedRegions = new LinkedList<>();
+    private static final int MAX_DECODED_REGIONS = 3;
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+
+    //只在解码线程使用
     private  static final BitmapFactory.Options options = new BitmapFactory.Options();
     static {
         options.inPreferredConfig= Bitmap.Config.RGB_565;
     }
 
+    private static class DecodedRegion {
+        final Rect rect;
+        final Bitmap bitmap;
+
+        DecodedRegion(Rect rect, Bitmap bitmap) {
+            this.rect = rect;
+            this.bitmap = bitmap;
+        }
+    }
+
     public SuperBigImageView(Context context, AttributeSet attrs) {
         super(context, attrs);
         init();
@@ -46,9 +73,115 @@ public class SuperBigImageView extends View {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        Bitmap bm  = bitmapRegionDecoder.decodeRegion(rect,options);
-        canvas.drawBitmap(bm, 0, 0, null);
-        bm.recycle();
+        if (!updateVisibleRect())
+            return;
+        DecodedRegion region = findRegion(visibleRect);
+        if (region == null) {
+            requestDecode();
+            if (decodedRegions.isEmpty())
+                return;
+            // 新区域还在解码,继续显示上一帧已解码的像素
+            region = decodedRegions.getLast();
+            canvas.drawBitmap(region.bitmap, region.rect.left - rect.left, region.rect.top - rect.top, null);
+            return;
+        }
+        srcRect.set(visibleRect);
+        srcRect.offset(-region.rect.left, -region.rect.top);
+        dstRect.set(visibleRect);
+        dstRect.offset(-rect.left, -rect.top);
+        canvas.drawBitmap(region.bitmap, srcRect, dstRect, null);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        decodeThread = new HandlerThread("decodeThread");
+        decodeThread.start();
+        decodeHandler = new Handler(decodeThread.getLooper());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        decodeThread.quit();
+        decodeThread = null;
+        decodeHandler = null;
+        decodingRect.setEmpty();
+        clearDecodedRegions();
+    }
+
+    /**
+     * 计算绘制区域与图片的交集
+     * @return 交集是否为空
+     */
+    private boolean updateVisibleRect() {
+        visibleRect.set(rect);
+        return bitmapRegionDecoder != null && visibleRect.intersect(0, 0, imageWidth, imageHeight);
+    }
+
+    /**
+     * 查找包含该区域的已解码区域
+     */
+    private DecodedRegion findRegion(Rect area) {
+        for (int i = decodedRegions.size() - 1; i >= 0; i--) {
+            DecodedRegion region = decodedRegions.get(i);
+            if (region.rect.contains(area))
+                return region;
+        }
+        return null;
+    }
+
+    /**
+     * 在解码线程解码比显示区域大半屏的区域,这样小范围的移动不需要再次解码
+     */
+    private void requestDecode() {
+        if (decodeHandler == null || !updateVisibleRect())
+            return;
+        if (findRegion(visibleRect) != null || decodingRect.contains(visibleRect))
+            return;
+        final Rect region = new Rect(rect);
+        region.inset(-getWidth() / 2, -getHeight() / 2);
+        region.intersect(0, 0, imageWidth, imageHeight);
+        decodingRect.set(region);
+        final BitmapRegionDecoder decoder = bitmapRegionDecoder;
+        // 还没开始的旧请求已经没有意义了
+        decodeHandler.removeCallbacksAndMessages(null);
+        decodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bm = decoder.decodeRegion(region, options);
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRegionDecoded(decoder, region, bm);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 解码完成,在UI线程加入缓存
+     */
+    private void onRegionDecoded(BitmapRegionDecoder decoder, Rect region, Bitmap bm) {
+        if (decodingRect.equals(region))
+            decodingRect.setEmpty();
+        if (bm == null)
+            return;
+        if (decoder != bitmapRegionDecoder || decodeHandler == null) {
+            bm.recycle();
+            return;
+        }
+        decodedRegions.addLast(new DecodedRegion(region, bm));
+        if (decodedRegions.size() > MAX_DECODED_REGIONS)
+            decodedRegions.removeFirst().bitmap.recycle();
+        invalidate();
+    }
+
+    private void clearDecodedRegions() {
+        for (DecodedRegion region : decodedRegions)
+            region.bitmap.recycle();
+        decodedRegions.clear();
     }
 
     @Override
@@ -68,12 +201,12 @@ public class SuperBigImageView extends View {
      */
     public  void setInputStream(InputStream inputStream){
         try {
+            //解码器已经解析了头部,不用再读一遍流
             bitmapRegionDecoder = BitmapRegionDecoder.newInstance(inputStream,false);
-            BitmapFactory.Options tmpOptions  = new BitmapFactory.Options();
-            tmpOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(inputStream,null,tmpOptions);
-            imageHeight = tmpOptions.outHeight;
-            imageWidth = tmpOptions.outWidth;
+            imageHeight = bitmapRegionDecoder.getHeight();
+            imageWidth = bitmapRegionDecoder.getWidth();
+            decodingRect.setEmpty();
+            clearDecodedRegions();
 //            requestLayout();
 //            invalidate();
         } catch (IOException e) {
@@ -95,17 +228,27 @@ public class SuperBigImageView extends View {
             public boolean onMove(MoveGestureDetector moveGestureDetector) {
                 int moveX =(int) moveGestureDetector.getMoveX();
                 int moveY = (int) moveGestureDetector.getMoveY();
+                //不到一个像素,留给检测器继续累计
+                if (moveX == 0 && moveY == 0)
+                    return false;
+                //只拿走整数像素,小数部分留在检测器里,否则每帧每个方向最多丢一个像素
+                moveGestureDetector.consume(moveX, moveY);
+                int left = rect.left;
+                int top = rect.top;
                 if (imageWidth>getWidth()){
                     rect.offset(-moveX,0);
                     checkWidth();
-                    invalidate();
                 }
                 if (imageHeight>getHeight()){
                     rect.offset(0,-moveY);
                     checkHeight();
+                }
+                //检测器每帧只回调一次,位置真的变了才重绘一次
+                if (rect.left != left || rect.top != top){
                     invalidate();
+                    requestDecode();
                 }
-                return  true;
+                return  false;
             }
 
             @Override
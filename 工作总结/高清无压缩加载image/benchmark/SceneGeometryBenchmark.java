@@ -0,0 +1,113 @@
+package com.bollin1206.superbigimage.benchmark;
+
+import com.bollin1206.superbigimage.view.SceneGeometry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 手势路径基准测试
+ * Times the geometry that runs on every gesture event and every cache update, for
+ * scenes from 10 megapixels to 2 gigapixels and screens up to 4K. It only needs
+ * {@link SceneGeometry}, which is plain Java, so it runs on a desktop JVM. The pom next
+ * to this file builds the two of them and nothing else:
+ * <pre>
+ * mvn -B package
+ * java -jar target/benchmarks.jar SceneGeometry
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SceneGeometryBenchmark {
+    /**
+     * Scene size in megapixels, as a 4:3 image
+     */
+    @Param({"10", "100", "500", "2000"})
+    public int sceneMegapixels;
+
+    /**
+     * Screen size, width x height
+     */
+    @Param({"720x1280", "1080x1920", "2160x3840"})
+    public String screen;
+
+    /**
+     * Bytes of the cache window budget, the default 5% of a 512MB heap halved
+     */
+    private static final double WINDOW_PIXELS = 512.0 * 1024 * 1024 * 5 / 100 / 2 / 2;
+
+    private int sceneWidth;
+    private int sceneHeight;
+    private int screenWidth;
+    private int screenHeight;
+    private final SceneGeometry.Box viewport = new SceneGeometry.Box();
+    private final SceneGeometry.Box out = new SceneGeometry.Box();
+    private float zoom;
+    private int step;
+
+    @Setup
+    public void setUp() {
+        long pixels = sceneMegapixels * 1000000L;
+        sceneWidth = (int) Math.sqrt(pixels * 4 / 3);
+        sceneHeight = (int) (pixels / sceneWidth);
+        int x = screen.indexOf('x');
+        screenWidth = Integer.parseInt(screen.substring(0, x));
+        screenHeight = Integer.parseInt(screen.substring(x + 1));
+        zoom = 2f;
+        viewport.set(sceneWidth / 2, sceneHeight / 2,
+                sceneWidth / 2 + (int) (screenWidth * zoom), sceneHeight / 2 + (int) (screenHeight * zoom));
+    }
+
+    /**
+     * A pan event, see PortableScene.Viewport.setOrigin
+     */
+    @Benchmark
+    public void setOrigin(Blackhole blackhole) {
+        step = (step + 37) & 1023;
+        blackhole.consume(SceneGeometry.clampOrigin(viewport.left + step - 512, viewport.width(), sceneWidth));
+        blackhole.consume(SceneGeometry.clampOrigin(viewport.top + step - 512, viewport.height(), sceneHeight));
+    }
+
+    /**
+     * A scale event of a pinch, see PortableScene.Viewport.zoom
+     */
+    @Benchmark
+    public float zoom() {
+        step = (step + 1) & 63;
+        float factor = step < 32 ? 0.98f : 1.02f;
+        return SceneGeometry.zoom(viewport, screenWidth, screenHeight, zoom, factor,
+                screenWidth / 3f, screenHeight / 2f, sceneWidth, sceneHeight, 50, out);
+    }
+
+    /**
+     * Working out the cache window of a fill, see InputStreamScene.calculateCacheWindow
+     */
+    @Benchmark
+    public SceneGeometry.Box cacheWindow() {
+        step = (step + 1) & 255;
+        SceneGeometry.cacheWindow(viewport, 2, WINDOW_PIXELS, step - 128, 128 - step,
+                sceneWidth, sceneHeight, out);
+        return out;
+    }
+
+    @Benchmark
+    public int solveMargin() {
+        return SceneGeometry.solveMargin(viewport.width(), viewport.height(), WINDOW_PIXELS);
+    }
+}
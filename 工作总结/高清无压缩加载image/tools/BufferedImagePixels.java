@@ -0,0 +1,63 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.Pixels;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+/**
+ * 桌面像素
+ * The {@link Pixels} of a BufferedImage. The format is the image's type, so only images
+ * of the same type are pooled for one another.
+ */
+public class BufferedImagePixels implements Pixels {
+    private final BufferedImage image;
+    private boolean recycled = false;
+
+    public BufferedImagePixels(BufferedImage image) {
+        this.image = image;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public int getByteCount() {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    @Override
+    public int getFormat() {
+        return image.getType();
+    }
+
+    @Override
+    public boolean isReusable() {
+        return !recycled && image.getType() != BufferedImage.TYPE_CUSTOM;
+    }
+
+    /**
+     * The GC takes the pixels, this only keeps them from being reused
+     */
+    @Override
+    public void recycle() {
+        recycled = true;
+    }
+
+    @Override
+    public boolean isRecycled() {
+        return recycled;
+    }
+}
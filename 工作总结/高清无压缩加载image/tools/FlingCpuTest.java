@@ -0,0 +1,177 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.PortableScene;
+import com.bollin1206.superbigimage.view.RegionDecoderScene;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 惯性滑动CPU对比
+ * Flings a {@link RegionDecoderScene} the same way twice and measures the CPU time of the
+ * threads that drive it, as ImageSurfaceView does with SystemClock.currentThreadTimeMillis():
+ * <ul>
+ * <li>the old way, a touch thread that sets the origin from the scroller in a loop
+ * with no sleep for the whole fling, next to a draw thread drawing at the frame rate;</li>
+ * <li>the way ImageSurfaceView flings now, the draw thread setting the origin once per
+ * frame right before it draws.</li>
+ * </ul>
+ * The fling decelerates evenly from the given velocity to rest, like a Scroller does
+ * roughly. Compile it like {@link HeadlessSceneLoadTest}, then:
+ * <pre>
+ * java -cp out com.bollin1206.superbigimage.tools.FlingCpuTest [options] image
+ *   --velocity n       pixels per second the fling starts at, 6000 by default
+ *   --millis n         how long the fling lasts, 2000 by default
+ *   --fps n            frames drawn per second, 60 by default
+ * </pre>
+ */
+public class FlingCpuTest {
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 1920;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int velocity = 6000;
+        int millis = 2000;
+        int fps = 60;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i += 2) {
+            if (i + 1 >= args.length)
+                usage();
+            if ("--velocity".equals(args[i]))
+                velocity = Integer.parseInt(args[i + 1]);
+            else if ("--millis".equals(args[i]))
+                millis = Integer.parseInt(args[i + 1]);
+            else if ("--fps".equals(args[i]))
+                fps = Integer.parseInt(args[i + 1]);
+            else
+                usage();
+        }
+        if (args.length - i != 1 || millis <= 0 || fps <= 0)
+            usage();
+
+        RegionDecoderScene scene = new RegionDecoderScene(new JvmPlatform(false),
+                ImageIoRegionDecoder.forFile(new File(args[i])), Runtime.getRuntime().availableProcessors());
+        scene.getViewport().setViewportSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+        scene.start();
+        try {
+            Fling fling = new Fling(velocity, millis);
+            // Once each to load the classes and let the JIT compile, then measured
+            flingWithTouchThread(scene, fling, fps);
+            flingOnFrameTick(scene, fling, fps);
+            long[] old = flingWithTouchThread(scene, fling, fps);
+            long tick = flingOnFrameTick(scene, fling, fps);
+            System.out.printf("touch thread: %dms CPU, its draw thread %dms, %dms together%n",
+                    old[0], old[1], old[0] + old[1]);
+            System.out.printf("frame tick:   %dms CPU on the draw thread%n", tick);
+        } finally {
+            scene.stop();
+            scene.recycle();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: FlingCpuTest [--velocity n] [--millis n] [--fps n] image");
+        System.exit(2);
+    }
+
+    /**
+     * Where a fling that starts at the left edge and decelerates evenly is after t milliseconds
+     */
+    private static final class Fling {
+        final float velocity;
+        final int millis;
+
+        Fling(int velocity, int millis) {
+            this.velocity = velocity / 1000f;
+            this.millis = millis;
+        }
+
+        int x(long t) {
+            t = Math.min(t, millis);
+            return (int) (velocity * t - velocity * t * t / (2f * millis));
+        }
+    }
+
+    /**
+     * @return milliseconds of CPU the touch thread and the draw thread took
+     */
+    private static long[] flingWithTouchThread(final PortableScene scene, final Fling fling, final int fps)
+            throws InterruptedException {
+        final long[] cpu = new long[2];
+        final int top = scene.getViewport().getState(new PortableScene.ViewportState()).top;
+        final long start = System.currentTimeMillis();
+        Thread touchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long cpuStart = threadCpuMillis();
+                long t;
+                do {
+                    t = System.currentTimeMillis() - start;
+                    scene.getViewport().setOrigin(fling.x(t), top);
+                } while (t < fling.millis);
+                cpu[0] = threadCpuMillis() - cpuStart;
+            }
+        }, "touchThread");
+        Thread drawThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long cpuStart = threadCpuMillis();
+                long frameMillis = 1000 / fps;
+                for (long t = 0; t <= fling.millis; t += frameMillis) {
+                    scene.drawFrame();
+                    sleepUntil(start + t + frameMillis);
+                }
+                cpu[1] = threadCpuMillis() - cpuStart;
+            }
+        }, "drawThread");
+        touchThread.start();
+        drawThread.start();
+        touchThread.join();
+        drawThread.join();
+        return cpu;
+    }
+
+    /**
+     * @return milliseconds of CPU the draw thread took
+     */
+    private static long flingOnFrameTick(final PortableScene scene, final Fling fling, final int fps)
+            throws InterruptedException {
+        final long[] cpu = new long[1];
+        final int top = scene.getViewport().getState(new PortableScene.ViewportState()).top;
+        final long start = System.currentTimeMillis();
+        Thread drawThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long cpuStart = threadCpuMillis();
+                long frameMillis = 1000 / fps;
+                for (long t = 0; t <= fling.millis; t += frameMillis) {
+                    scene.getViewport().setOrigin(fling.x(System.currentTimeMillis() - start), top);
+                    scene.drawFrame();
+                    sleepUntil(start + t + frameMillis);
+                }
+                cpu[0] = threadCpuMillis() - cpuStart;
+            }
+        }, "drawThread");
+        drawThread.start();
+        drawThread.join();
+        return cpu[0];
+    }
+
+    private static long threadCpuMillis() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        return threadBean.getCurrentThreadCpuTime() / 1000000;
+    }
+
+    private static void sleepUntil(long millis) {
+        long sleep = millis - System.currentTimeMillis();
+        if (sleep <= 0)
+            return;
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.GestureReplayer;
+import com.bollin1206.superbigimage.view.GestureTrace;
+import com.bollin1206.superbigimage.view.RegionDecoderScene;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * 手势回放工具
+ * Replays a {@link GestureTrace}, recorded on a device with
+ * ImageSurfaceView#startGestureRecording or by HeadlessSceneLoadTest --record, into a
+ * {@link RegionDecoderScene} of the same image on a desktop JVM. Compile it with the
+ * files listed in {@link HeadlessSceneLoadTest} plus GestureReplayer.java and
+ * GestureReplayTool.java, then:
+ * <pre>
+ * java -cp out com.bollin1206.superbigimage.tools.GestureReplayTool [options] image trace
+ *   --speed f          how much faster than recorded, 1 by default, 0 as fast as it draws
+ *   --fps n            frames drawn per second of the trace, 60 by default
+ *   --settle-ms n      how long to keep drawing after the last event, 1000 by default
+ *   --threads n        decode threads, as many as there are cores by default
+ *   --csv file         where to write every frame, for comparing runs
+ * </pre>
+ * A one line summary goes to the standard output.
+ */
+public class GestureReplayTool {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        float speed = 1f;
+        int fps = 60;
+        long settleMillis = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String csv = null;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i += 2) {
+            if (i + 1 >= args.length)
+                usage();
+            if ("--speed".equals(args[i]))
+                speed = Float.parseFloat(args[i + 1]);
+            else if ("--fps".equals(args[i]))
+                fps = Integer.parseInt(args[i + 1]);
+            else if ("--settle-ms".equals(args[i]))
+                settleMillis = Long.parseLong(args[i + 1]);
+            else if ("--threads".equals(args[i]))
+                threads = Integer.parseInt(args[i + 1]);
+            else if ("--csv".equals(args[i]))
+                csv = args[i + 1];
+            else
+                usage();
+        }
+        if (args.length - i != 2)
+            usage();
+
+        GestureTrace trace;
+        Reader in = new InputStreamReader(new FileInputStream(args[i + 1]), "UTF-8");
+        try {
+            trace = GestureTrace.read(in);
+        } finally {
+            in.close();
+        }
+
+        RegionDecoderScene scene = new RegionDecoderScene(new JvmPlatform(false),
+                ImageIoRegionDecoder.forFile(new File(args[i])), threads);
+        scene.getMetrics().setEnabled(true);
+        scene.start();
+        List<GestureReplayer.Frame> frames;
+        try {
+            frames = new GestureReplayer(scene, trace)
+                    .setSpeed(speed)
+                    .setFramesPerSecond(fps)
+                    .setSettleMillis(settleMillis)
+                    .replay();
+        } finally {
+            scene.stop();
+            scene.recycle();
+        }
+
+        if (csv != null) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+            try {
+                GestureReplayer.writeCsv(frames, out);
+            } finally {
+                out.close();
+            }
+        }
+        System.out.println(GestureReplayer.summarize(frames));
+    }
+
+    private static void usage() {
+        System.err.println("usage: GestureReplayTool [--speed f] [--fps n] [--settle-ms n] [--threads n] "
+                + "[--csv file] image trace");
+        System.exit(2);
+    }
+}
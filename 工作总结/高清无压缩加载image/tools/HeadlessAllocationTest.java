@@ -0,0 +1,154 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.PixelCanvas;
+import com.bollin1206.superbigimage.view.Pixels;
+import com.bollin1206.superbigimage.view.PortableScene;
+import com.bollin1206.superbigimage.view.RegionDecoderScene;
+import com.bollin1206.superbigimage.view.SceneGeometry;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 无界面分配检查
+ * Checks that moving, zooming and drawing a {@link RegionDecoderScene} allocates nothing
+ * on the thread that does it, once the cache has settled. The frames are composited on
+ * a canvas that draws nothing, so what Java2D allocates doesn't count; only the engine
+ * does. Compile it like {@link HeadlessSceneLoadTest}, then:
+ * <pre>
+ * java -cp out com.bollin1206.superbigimage.tools.HeadlessAllocationTest [options] image
+ *   --frames n         how many move events and frames to count, 2000 by default
+ *   --threads n        decode threads, as many as there are cores by default
+ * </pre>
+ * Needs a JVM that counts the bytes each thread allocates, like HotSpot. Exits with 1
+ * if anything was allocated, and says how much in the round that allocated least.
+ */
+public class HeadlessAllocationTest {
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 1920;
+    private static final long SETTLE_MILLIS = 30000;
+    /**
+     * The JVM itself now and then allocates a few hundred bytes on a thread, e.g. when
+     * the JIT swaps code, so the least of a few rounds is what counts. An allocation
+     * per frame or per event shows in every round.
+     */
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int frames = 2000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i += 2) {
+            if (i + 1 >= args.length)
+                usage();
+            if ("--frames".equals(args[i]))
+                frames = Integer.parseInt(args[i + 1]);
+            else if ("--threads".equals(args[i]))
+                threads = Integer.parseInt(args[i + 1]);
+            else
+                usage();
+        }
+        if (args.length - i != 1 || frames <= 0)
+            usage();
+
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            System.err.println("this JVM doesn't count allocated bytes per thread");
+            System.exit(2);
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        RegionDecoderScene scene = new RegionDecoderScene(new BlindPlatform(),
+                ImageIoRegionDecoder.forFile(new File(args[i])), threads);
+        scene.getMetrics().setEnabled(true);
+        PortableScene.Viewport viewport = scene.getViewport();
+        viewport.setViewportSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+        viewport.setOrigin((scene.getSceneWidth() - SCREEN_WIDTH) / 2, (scene.getSceneHeight() - SCREEN_HEIGHT) / 2);
+        scene.start();
+        PortableScene.ViewportState state = new PortableScene.ViewportState();
+        long allocated;
+        try {
+            settle(scene);
+            // Once to load the classes and let the JIT compile, then counted
+            run(scene, state, frames);
+            settle(scene);
+            long thread = Thread.currentThread().getId();
+            long before = threadBean.getThreadAllocatedBytes(thread);
+            long overhead = threadBean.getThreadAllocatedBytes(thread) - before;
+            allocated = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                before = threadBean.getThreadAllocatedBytes(thread);
+                run(scene, state, frames);
+                allocated = Math.min(allocated, threadBean.getThreadAllocatedBytes(thread) - before - overhead);
+            }
+        } finally {
+            scene.stop();
+            scene.recycle();
+        }
+        System.out.printf("%d bytes allocated over %d move events, zooms and frames%n", allocated, frames);
+        if (allocated > 0)
+            System.exit(1);
+    }
+
+    private static void usage() {
+        System.err.println("usage: HeadlessAllocationTest [--frames n] [--threads n] image");
+        System.exit(2);
+    }
+
+    /**
+     * Draw until every tile around the viewport is decoded
+     */
+    private static void settle(PortableScene scene) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        do {
+            scene.drawFrame();
+            Thread.sleep(16);
+        } while ((scene.isLastFrameSampleFallback() || scene.getDecodeBacklog() > 0)
+                && System.currentTimeMillis() < deadline);
+    }
+
+    /**
+     * Wiggle the viewport by a pixel and zoom in and out by a hair, a frame each,
+     * so the cache window never has to move
+     */
+    private static void run(PortableScene scene, PortableScene.ViewportState state, int frames) {
+        PortableScene.Viewport viewport = scene.getViewport();
+        viewport.getState(state);
+        int left = state.left;
+        int top = state.top;
+        for (int frame = 0; frame < frames; frame++) {
+            int step = frame & 1;
+            viewport.setOrigin(left + step, top + step);
+            if ((frame & 3) == 0)
+                viewport.zoom(1.001f, SCREEN_WIDTH / 2f, SCREEN_HEIGHT / 2f);
+            else if ((frame & 3) == 2)
+                viewport.zoom(1 / 1.001f, SCREEN_WIDTH / 2f, SCREEN_HEIGHT / 2f);
+            viewport.getState(state);
+            scene.drawFrame();
+        }
+    }
+
+    /**
+     * A desktop platform whose canvas draws nothing
+     */
+    private static final class BlindPlatform extends JvmPlatform {
+        BlindPlatform() {
+            super(false);
+        }
+
+        @Override
+        public PixelCanvas createCanvas() {
+            return new PixelCanvas() {
+                @Override
+                public void setTarget(Pixels target) {
+                }
+
+                @Override
+                public void drawPixels(Pixels pixels, SceneGeometry.Box src, SceneGeometry.Box dst) {
+                }
+            };
+        }
+    }
+}
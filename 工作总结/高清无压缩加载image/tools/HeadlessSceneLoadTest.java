@@ -0,0 +1,182 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.GestureTrace;
+import com.bollin1206.superbigimage.view.PortableScene;
+import com.bollin1206.superbigimage.view.RegionDecoderScene;
+import com.bollin1206.superbigimage.view.SceneMetrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * 无界面场景压测
+ * Opens an image in a {@link RegionDecoderScene} on a desktop JVM and drives its viewport
+ * with a scripted pan and zoom, drawing a frame at the given rate, then prints what the
+ * scene's metrics saw. Nothing of Android is involved, so it runs under any profiler:
+ * <pre>
+ * cd view带手势滑动缩放
+ * javac -encoding UTF-8 -d out BitmapPool.java DecodeEngine.java GestureTrace.java MemoryBudget.java \
+ *     PixelCanvas.java Pixels.java Platform.java PortableScene.java RegionDecoder.java RegionDecoderScene.java \
+ *     SceneGeometry.java SceneMetrics.java TileCache.java UpdateQueue.java ../tools/JvmPlatform.java \
+ *     ../tools/BufferedImagePixels.java ../tools/ImageIoRegionDecoder.java ../tools/HeadlessSceneLoadTest.java
+ * java -cp out com.bollin1206.superbigimage.tools.HeadlessSceneLoadTest [options] image
+ *   --seconds n        how long to run, 20 by default
+ *   --fps n            frames drawn per second, 60 by default
+ *   --threads n        decode threads, as many as there are cores by default
+ *   --screen wxh       the size of the frame, 1080x1920 by default
+ *   --record file      save what the script did as a GestureTrace, for GestureReplayTool
+ *   --verbose          log what the engine does
+ * </pre>
+ * The script repeats five phases of two seconds each: pan right, pan down, zoom out
+ * around the center, pan left and up, zoom back in.
+ */
+public class HeadlessSceneLoadTest {
+    private static final int PHASE_MILLIS = 2000;
+    /**
+     * How far a pan moves per frame, in screen pixels
+     */
+    private static final int PAN_PIXELS = 24;
+    private static final float ZOOM_STEP = 1.02f;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int seconds = 20;
+        int fps = 60;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int screenWidth = 1080;
+        int screenHeight = 1920;
+        boolean verbose = false;
+        File record = null;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if ("--verbose".equals(args[i])) {
+                verbose = true;
+                continue;
+            }
+            if (i + 1 >= args.length)
+                usage();
+            String value = args[++i];
+            if ("--seconds".equals(args[i - 1]))
+                seconds = Integer.parseInt(value);
+            else if ("--fps".equals(args[i - 1]))
+                fps = Integer.parseInt(value);
+            else if ("--threads".equals(args[i - 1]))
+                threads = Integer.parseInt(value);
+            else if ("--record".equals(args[i - 1]))
+                record = new File(value);
+            else if ("--screen".equals(args[i - 1])) {
+                String[] size = value.split("x");
+                if (size.length != 2)
+                    usage();
+                screenWidth = Integer.parseInt(size[0]);
+                screenHeight = Integer.parseInt(size[1]);
+            } else
+                usage();
+        }
+        if (args.length - i != 1 || fps <= 0 || seconds <= 0)
+            usage();
+        run(new File(args[i]), seconds, fps, threads, screenWidth, screenHeight, verbose, record);
+    }
+
+    private static void usage() {
+        System.err.println("usage: HeadlessSceneLoadTest [--seconds n] [--fps n] [--threads n] [--screen wxh] "
+                + "[--record file] [--verbose] image");
+        System.exit(2);
+    }
+
+    static void run(File image, int seconds, int fps, int threads, int screenWidth, int screenHeight,
+                    boolean verbose, File record) throws IOException, InterruptedException {
+        JvmPlatform platform = new JvmPlatform(verbose);
+        long openStart = System.nanoTime();
+        RegionDecoderScene scene = new RegionDecoderScene(platform, ImageIoRegionDecoder.forFile(image), threads);
+        System.out.printf("opened %dx%d in %dms%n", scene.getSceneWidth(), scene.getSceneHeight(),
+                (System.nanoTime() - openStart) / 1000000);
+        scene.getMetrics().setEnabled(true);
+        if (record != null)
+            scene.setGestureTrace(new GestureTrace(platform));
+        scene.getViewport().setViewportSize(screenWidth, screenHeight);
+        scene.start();
+
+        long frameNanos = 1000000000L / fps;
+        int frames = seconds * fps;
+        int framesPerPhase = Math.max(1, PHASE_MILLIS * fps / 1000);
+        long late = 0;
+        PortableScene.ViewportState state = new PortableScene.ViewportState();
+        long next = System.nanoTime();
+        try {
+            for (int frame = 0; frame < frames; frame++) {
+                step(scene, state, (frame / framesPerPhase) % 5, screenWidth, screenHeight);
+                scene.drawFrame();
+                next += frameNanos;
+                long sleep = next - System.nanoTime();
+                if (sleep > 0)
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                else
+                    late++;
+            }
+        } finally {
+            scene.stop();
+            scene.recycle();
+        }
+        print(scene, frames, late);
+        if (record != null) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(record), "UTF-8");
+            try {
+                scene.getGestureTrace().write(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Move the viewport one frame's worth along the phase of the script
+     *
+     * @param state where the viewport is gets copied into it
+     */
+    private static void step(PortableScene scene, PortableScene.ViewportState state, int phase,
+                             int screenWidth, int screenHeight) {
+        PortableScene.Viewport viewport = scene.getViewport();
+        viewport.getState(state);
+        int pan = Math.max(1, Math.round(PAN_PIXELS * state.zoom));
+        switch (phase) {
+            case 0:
+                viewport.setOrigin(state.left + pan, state.top);
+                break;
+            case 1:
+                viewport.setOrigin(state.left, state.top + pan);
+                break;
+            case 2:
+                viewport.zoom(ZOOM_STEP, screenWidth / 2f, screenHeight / 2f);
+                break;
+            case 3:
+                viewport.setOrigin(state.left - pan, state.top - pan);
+                break;
+            default:
+                viewport.zoom(1 / ZOOM_STEP, screenWidth / 2f, screenHeight / 2f);
+                break;
+        }
+    }
+
+    private static void print(PortableScene scene, int frames, long late) {
+        SceneMetrics.Snapshot snapshot = scene.getMetrics().snapshot();
+        System.out.printf("frames %d, %d late, sample fallback %.1f%%%n",
+                frames, late, snapshot.getSampleFallbackRatio() * 100);
+        System.out.printf("frame time us: mean %d, p50 %d, p95 %d, p99 %d, max %d%n",
+                snapshot.frameTime.getMeanMicros(), snapshot.frameTime.getPercentileMicros(50),
+                snapshot.frameTime.getPercentileMicros(95), snapshot.frameTime.getPercentileMicros(99),
+                snapshot.frameTime.getMaxMicros());
+        System.out.printf("decode latency us: mean %d, p50 %d, p95 %d, max %d%n",
+                snapshot.decodeLatency.getMeanMicros(), snapshot.decodeLatency.getPercentileMicros(50),
+                snapshot.decodeLatency.getPercentileMicros(95), snapshot.decodeLatency.getMaxMicros());
+        System.out.printf("tiles decoded %d, %d MB, bitmap pool hit %.0f%%%n",
+                snapshot.tilesDecoded, snapshot.bytesDecoded / (1024 * 1024), scene.getBitmapPoolHitRate() * 100);
+        System.out.printf("time to first pixel %dms, to sharp %dms%n",
+                snapshot.timeToFirstPixelMillis, snapshot.timeToSharpMillis);
+        for (Map.Entry<String, Long> entry : snapshot.stateMillis.entrySet())
+            System.out.printf("  %-12s %dms%n", entry.getKey(), entry.getValue());
+    }
+}
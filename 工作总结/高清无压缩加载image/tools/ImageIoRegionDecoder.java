@@ -0,0 +1,105 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.Pixels;
+import com.bollin1206.superbigimage.view.RegionDecoder;
+import com.bollin1206.superbigimage.view.SceneGeometry;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * ImageIO区域解码器
+ * A {@link RegionDecoder} over an ImageReader, decoding a source region with source
+ * subsampling. ImageIO rounds the size of a subsampled region up where Android rounds it
+ * down, so pooled pixels are only reused for regions they fit exactly.
+ */
+public class ImageIoRegionDecoder implements RegionDecoder {
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+
+    public ImageIoRegionDecoder(File file) throws IOException {
+        input = ImageIO.createImageInputStream(file);
+        if (input == null)
+            throw new IOException("can't read " + file);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("no ImageIO reader for " + file);
+        }
+        reader = readers.next();
+        reader.setInput(input, true, true);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+    }
+
+    /**
+     * Decoders of the image file, each with its own reader
+     */
+    public static Source forFile(final File file) {
+        return new Source() {
+            @Override
+            public RegionDecoder open() throws IOException {
+                return new ImageIoRegionDecoder(file);
+            }
+        };
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Pixels decodeRegion(SceneGeometry.Box region, int sampleSize, Pixels reuse) {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(region.left, region.top, region.width(), region.height()));
+        param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+        BufferedImage destination = null;
+        if (reuse != null) {
+            BufferedImage image = ((BufferedImagePixels) reuse).getImage();
+            if (image.getWidth() == (region.width() + sampleSize - 1) / sampleSize
+                    && image.getHeight() == (region.height() + sampleSize - 1) / sampleSize)
+                destination = image;
+        }
+        try {
+            if (destination != null) {
+                param.setDestination(destination);
+                try {
+                    reader.read(0, param);
+                    return reuse;
+                } catch (IllegalArgumentException e) {
+                    // The reader can't write into an image of this type, decode into a new one
+                    param.setDestination(null);
+                }
+            }
+            return new BufferedImagePixels(reader.read(0, param));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void recycle() {
+        reader.dispose();
+        try {
+            input.close();
+        } catch (IOException e) {
+            // nothing left to read from it anyway
+        }
+    }
+}
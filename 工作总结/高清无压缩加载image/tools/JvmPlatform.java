@@ -0,0 +1,80 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.PixelCanvas;
+import com.bollin1206.superbigimage.view.Pixels;
+import com.bollin1206.superbigimage.view.Platform;
+import com.bollin1206.superbigimage.view.SceneGeometry;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * 桌面平台
+ * Runs the scene engine on a desktop JVM: frames are INT_RGB BufferedImages drawn with
+ * Java2D, the clock is {@link System#nanoTime()} and the log goes to System.err.
+ */
+public class JvmPlatform extends Platform {
+    private final boolean verbose;
+
+    public JvmPlatform(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    @Override
+    public Pixels createPixels(int width, int height) {
+        return new BufferedImagePixels(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Override
+    public PixelCanvas createCanvas() {
+        return new PixelCanvas() {
+            private Graphics2D graphics;
+
+            @Override
+            public void setTarget(Pixels target) {
+                if (graphics != null)
+                    graphics.dispose();
+                graphics = ((BufferedImagePixels) target).getImage().createGraphics();
+            }
+
+            @Override
+            public void drawPixels(Pixels pixels, SceneGeometry.Box src, SceneGeometry.Box dst) {
+                BufferedImage image = ((BufferedImagePixels) pixels).getImage();
+                if (src == null)
+                    graphics.drawImage(image, dst.left, dst.top, dst.right, dst.bottom,
+                            0, 0, image.getWidth(), image.getHeight(), null);
+                else
+                    graphics.drawImage(image, dst.left, dst.top, dst.right, dst.bottom,
+                            src.left, src.top, src.right, src.bottom, null);
+            }
+        };
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    @Override
+    public void debug(String tag, String message) {
+        if (verbose)
+            System.err.println("D/" + tag + ": " + message);
+    }
+
+    @Override
+    public void warn(String tag, String message) {
+        System.err.println("W/" + tag + ": " + message);
+    }
+
+    @Override
+    public void error(String tag, String message, Throwable error) {
+        System.err.println("E/" + tag + ": " + message);
+        if (error != null)
+            error.printStackTrace();
+    }
+}
@@ -0,0 +1,121 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.PortableScene;
+import com.bollin1206.superbigimage.view.RegionDecoderScene;
+import com.bollin1206.superbigimage.view.SceneMetrics;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 生命周期检查
+ * Takes a {@link RegionDecoderScene} through what an activity does to it and checks that
+ * every time the cache gets back to READY with every visible tile decoded:
+ * <ul>
+ * <li>the UI is hidden: the scene is stopped, memory is trimmed at UI_HIDDEN, which
+ * evicts the visible tiles, and the scene is started again;</li>
+ * <li>the app goes to the background in the middle of a fill: the viewport jumps to
+ * another corner, and the scene is stopped while tiles are still queued, then started
+ * again.</li>
+ * </ul>
+ * Compile it like {@link HeadlessSceneLoadTest}, then:
+ * <pre>
+ * java -cp out com.bollin1206.superbigimage.tools.SceneLifecycleTest [options] image
+ *   --threads n        decode threads, as many as there are cores by default
+ * </pre>
+ * Exits with 1 and says which step never settled.
+ */
+public class SceneLifecycleTest {
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 1920;
+    private static final long SETTLE_MILLIS = 30000;
+    /**
+     * android.content.ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN
+     */
+    private static final int TRIM_MEMORY_UI_HIDDEN = 20;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i += 2) {
+            if (i + 1 >= args.length)
+                usage();
+            if ("--threads".equals(args[i]))
+                threads = Integer.parseInt(args[i + 1]);
+            else
+                usage();
+        }
+        if (args.length - i != 1)
+            usage();
+
+        RegionDecoderScene scene = new RegionDecoderScene(new JvmPlatform(false),
+                ImageIoRegionDecoder.forFile(new File(args[i])), threads);
+        scene.getMetrics().setEnabled(true);
+        PortableScene.Viewport viewport = scene.getViewport();
+        viewport.setViewportSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+        viewport.setOrigin((scene.getSceneWidth() - SCREEN_WIDTH) / 2, (scene.getSceneHeight() - SCREEN_HEIGHT) / 2);
+        scene.start();
+        String failure;
+        try {
+            failure = settle(scene, "opening");
+            if (failure == null) {
+                scene.stop();
+                scene.onTrimMemory(TRIM_MEMORY_UI_HIDDEN);
+                scene.start();
+                failure = settle(scene, "trimming at UI_HIDDEN and starting again");
+            }
+            if (failure == null) {
+                viewport.setOrigin(0, 0);
+                startFill(scene);
+                scene.stop();
+                scene.start();
+                failure = settle(scene, "stopping in the middle of a fill and starting again");
+            }
+        } finally {
+            scene.stop();
+            scene.recycle();
+        }
+        if (failure != null) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+        System.out.println("every step settled");
+    }
+
+    private static void usage() {
+        System.err.println("usage: SceneLifecycleTest [--threads n] image");
+        System.exit(2);
+    }
+
+    /**
+     * Draw until tiles are queued for decoding
+     */
+    private static void startFill(PortableScene scene) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        do {
+            scene.drawFrame();
+            Thread.sleep(1);
+        } while (scene.getDecodeBacklog() == 0 && System.currentTimeMillis() < deadline);
+    }
+
+    /**
+     * Draw until the cache is READY with every visible tile decoded
+     *
+     * @return what went wrong, or null
+     */
+    private static String settle(PortableScene scene, String step) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        SceneMetrics.Snapshot snapshot;
+        do {
+            scene.drawFrame();
+            Thread.sleep(16);
+            snapshot = scene.getMetrics().snapshot();
+            if ("READY".equals(snapshot.state) && !scene.isLastFrameSampleFallback()
+                    && scene.getDecodeBacklog() == 0)
+                return null;
+        } while (System.currentTimeMillis() < deadline);
+        return String.format("after %s the cache was still %s after %ds, sample shown %b, %d decodes queued",
+                step, snapshot.state, SETTLE_MILLIS / 1000, scene.isLastFrameSampleFallback(),
+                scene.getDecodeBacklog());
+    }
+}
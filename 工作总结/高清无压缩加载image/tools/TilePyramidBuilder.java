@@ -0,0 +1,275 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.TilePyramid;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * 瓦片金字塔生成工具
+ * Cuts an image into a {@link TilePyramid} file for TilePyramidScene. Runs on a desktop
+ * JVM, reading the source with ImageIO:
+ * <pre>
+ * javac -encoding UTF-8 -d out ../view带手势滑动缩放/TilePyramid.java TilePyramidBuilder.java
+ * java -cp out com.bollin1206.superbigimage.tools.TilePyramidBuilder [options] source pyramid
+ *   --format jpg|png   how to encode the tiles, jpg by default
+ *   --quality 0..1     jpg quality, 0.9 by default
+ *   --strip-mb n       how much memory a strip of the source may take, 256 by default
+ * </pre>
+ * The source is read a strip of rows at a time. Every level keeps only the rows of one
+ * row of tiles: once it has them it writes the tiles out and passes the rows, scaled
+ * down by two, on to the next level. Memory is a strip plus about two rows of tiles of
+ * the full width, however tall the image is. Some readers, e.g. PNG, decode from the top
+ * again for every strip, so strips are made as tall as the memory allows.
+ */
+public class TilePyramidBuilder {
+    /**
+     * The same as TileCache.TILE_SIZE and TileCache.MAX_LEVEL, which the scene expects
+     */
+    private static final int TILE_SIZE = 256;
+    private static final int MAX_LEVEL = 7;
+
+    private final TilePyramid pyramid;
+    private final RandomAccessFile out;
+    private final long[] offsets;
+    private final int[] lengths;
+    private long dataPosition;
+    private final Level[] levels;
+    private final String format;
+    private final float quality;
+
+    /**
+     * The rows of one level that make up its next row of tiles
+     */
+    private class Level {
+        final int level;
+        final int width;
+        final int[] pixels;
+        int rows = 0;
+        int tileRow = 0;
+
+        Level(int level) {
+            this.level = level;
+            this.width = pyramid.getLevelWidth(level);
+            this.pixels = new int[width * TILE_SIZE];
+        }
+
+        /**
+         * Take rows of ARGB pixels, writing out every row of tiles they complete
+         */
+        void add(int[] source, int offset, int count) throws IOException {
+            while (count > 0) {
+                int take = Math.min(count, TILE_SIZE - rows);
+                System.arraycopy(source, offset, pixels, rows * width, take * width);
+                rows += take;
+                offset += take * width;
+                count -= take;
+                if (rows == TILE_SIZE)
+                    flush();
+            }
+        }
+
+        /**
+         * Write out the rows there are as a row of tiles and pass them on scaled down
+         */
+        void flush() throws IOException {
+            if (rows == 0 || tileRow >= pyramid.getRows(level))
+                return;
+            for (int col = 0; col < pyramid.getColumns(level); col++) {
+                int left = col * TILE_SIZE;
+                int tileWidth = Math.min(TILE_SIZE, width - left);
+                BufferedImage tile = new BufferedImage(tileWidth, rows, BufferedImage.TYPE_INT_RGB);
+                tile.setRGB(0, 0, tileWidth, rows, pixels, left, width);
+                writeTile(pyramid.tileIndex(level, col, tileRow), tile);
+            }
+            if (level + 1 < levels.length) {
+                int[] half = halve(pixels, width, rows);
+                levels[level + 1].add(half, 0, (rows + 1) / 2);
+            }
+            tileRow++;
+            rows = 0;
+        }
+    }
+
+    private TilePyramidBuilder(TilePyramid pyramid, RandomAccessFile out, String format, float quality) {
+        this.pyramid = pyramid;
+        this.out = out;
+        this.format = format;
+        this.quality = quality;
+        offsets = new long[pyramid.getTileCount()];
+        lengths = new int[pyramid.getTileCount()];
+        dataPosition = pyramid.dataPosition();
+        levels = new Level[pyramid.getLevels()];
+        for (int level = 0; level < levels.length; level++)
+            levels[level] = new Level(level);
+    }
+
+    /**
+     * Scale rows down by two, averaging each 2x2 block. An odd last row or column makes a
+     * row or column of its own, averaged with itself, since the levels are rounded up.
+     */
+    static int[] halve(int[] pixels, int width, int rows) {
+        int halfWidth = (width + 1) / 2;
+        int halfRows = (rows + 1) / 2;
+        int[] half = new int[halfWidth * halfRows];
+        for (int y = 0; y < halfRows; y++) {
+            int top = 2 * y * width;
+            int bottom = 2 * y + 1 < rows ? top + width : top;
+            for (int x = 0; x < halfWidth; x++) {
+                int right = 2 * x + 1 < width ? 2 * x + 1 : 2 * x;
+                int a = pixels[top + 2 * x];
+                int b = pixels[top + right];
+                int c = pixels[bottom + 2 * x];
+                int d = pixels[bottom + right];
+                int red = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2;
+                int green = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2;
+                int blue = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+                half[y * halfWidth + x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+        return half;
+    }
+
+    private void writeTile(int index, BufferedImage tile) throws IOException {
+        byte[] bytes = encode(tile);
+        out.seek(dataPosition);
+        out.write(bytes);
+        offsets[index] = dataPosition;
+        lengths[index] = bytes.length;
+        dataPosition += bytes.length;
+    }
+
+    private byte[] encode(BufferedImage tile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * 1024);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try {
+            MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(bytes);
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (pyramid.getEncoding() == TilePyramid.ENCODING_JPEG) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(tile, null, null), param);
+            stream.close();
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeIndex() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) pyramid.dataPosition());
+        pyramid.writeHeader(buffer);
+        for (int i = 0; i < offsets.length; i++)
+            buffer.putLong(offsets[i]).putInt(lengths[i]);
+        out.seek(0);
+        out.write(buffer.array());
+    }
+
+    /**
+     * Build the pyramid of the source image
+     *
+     * @param stripBytes how much memory a strip of the source may take
+     */
+    public static void build(File source, File target, String format, float quality, long stripBytes)
+            throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(source);
+        if (input == null)
+            throw new IOException("can't read " + source);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+                throw new IOException("no reader for " + source);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int encoding = "png".equals(format) ? TilePyramid.ENCODING_PNG : TilePyramid.ENCODING_JPEG;
+                TilePyramid pyramid = new TilePyramid(width, height, TILE_SIZE,
+                        TilePyramid.levelsFor(width, height, MAX_LEVEL), encoding);
+
+                RandomAccessFile out = new RandomAccessFile(target, "rw");
+                try {
+                    out.setLength(0);
+                    TilePyramidBuilder builder = new TilePyramidBuilder(pyramid, out, format, quality);
+                    builder.readStrips(reader, stripBytes);
+                    builder.writeIndex();
+                } finally {
+                    out.close();
+                }
+                System.out.println(String.format("%s: %dx%d, %d levels, %d tiles, %d bytes",
+                        target, width, height, pyramid.getLevels(), pyramid.getTileCount(), target.length()));
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void readStrips(ImageReader reader, long stripBytes) throws IOException {
+        int width = pyramid.getWidth();
+        int height = pyramid.getHeight();
+        // Whole rows of tiles, so a strip never splits one
+        long fit = stripBytes / 4 / width / TILE_SIZE * TILE_SIZE;
+        int stripRows = (int) Math.max(TILE_SIZE, Math.min(fit, height));
+        int[] pixels = new int[width * stripRows];
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (int top = 0; top < height; top += stripRows) {
+            int rows = Math.min(stripRows, height - top);
+            param.setSourceRegion(new Rectangle(0, top, width, rows));
+            BufferedImage strip = reader.read(0, param);
+            strip.getRGB(0, 0, width, rows, pixels, 0, width);
+            levels[0].add(pixels, 0, rows);
+            System.out.print(String.format("\r%d%%", (long) (top + rows) * 100 / height));
+        }
+        System.out.println();
+        // The last rows of tiles of every level, top to bottom so each passes its rows on first
+        for (Level level : levels)
+            level.flush();
+    }
+
+    public static void main(String[] args) throws IOException {
+        String format = "jpg";
+        float quality = 0.9f;
+        long stripMegabytes = 256;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i += 2) {
+            if (i + 1 >= args.length)
+                usage();
+            if ("--format".equals(args[i]))
+                format = args[i + 1];
+            else if ("--quality".equals(args[i]))
+                quality = Float.parseFloat(args[i + 1]);
+            else if ("--strip-mb".equals(args[i]))
+                stripMegabytes = Long.parseLong(args[i + 1]);
+            else
+                usage();
+        }
+        if (args.length - i != 2 || !("jpg".equals(format) || "png".equals(format)))
+            usage();
+        build(new File(args[i]), new File(args[i + 1]), format, quality, stripMegabytes * 1024 * 1024);
+    }
+
+    private static void usage() {
+        System.err.println("usage: TilePyramidBuilder [--format jpg|png] [--quality 0..1] [--strip-mb n] source pyramid");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,239 @@
+package com.bollin1206.superbigimage.tools;
+
+import com.bollin1206.superbigimage.view.PortableScene;
+import com.bollin1206.superbigimage.view.RegionDecoderScene;
+import com.bollin1206.superbigimage.view.SceneMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 视图并发压测
+ * Hammers the viewport of a {@link RegionDecoderScene} from several threads at once while
+ * another one draws, then checks that nothing was lost:
+ * <ul>
+ * <li>every thread zooms in and straight back out, so the zoom ends where it started
+ * unless a zoom was overwritten by another;</li>
+ * <li>a reader never sees a state torn between two writes, e.g. the width of one
+ * screen size with the height of the other;</li>
+ * <li>the final size and origin are exactly what was set last;</li>
+ * <li>the cache still gets from wherever the stress left it to READY, with every
+ * visible tile decoded, so no transition that should have woken it was lost.</li>
+ * </ul>
+ * Compile it like {@link HeadlessSceneLoadTest}, then:
+ * <pre>
+ * java -cp out com.bollin1206.superbigimage.tools.ViewportStressTest [options] image
+ *   --writers n        threads calling setOrigin, zoom and setViewportSize, 8 by default
+ *   --calls n          calls per thread, 200000 by default
+ *   --threads n        decode threads, as many as there are cores by default
+ * </pre>
+ * Exits with 1 and says what went wrong if anything did.
+ */
+public class ViewportStressTest {
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 1920;
+    private static final float ZOOM_STEP = 1.01f;
+    /**
+     * How far the zoom may drift from rounding alone after every zoom in met its zoom out.
+     * A single lost zoom is ZOOM_STEP - 1 off.
+     */
+    private static final float ZOOM_TOLERANCE = 0.001f;
+    private static final long SETTLE_MILLIS = 30000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int writers = 8;
+        int calls = 200000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i += 2) {
+            if (i + 1 >= args.length)
+                usage();
+            if ("--writers".equals(args[i]))
+                writers = Integer.parseInt(args[i + 1]);
+            else if ("--calls".equals(args[i]))
+                calls = Integer.parseInt(args[i + 1]);
+            else if ("--threads".equals(args[i]))
+                threads = Integer.parseInt(args[i + 1]);
+            else
+                usage();
+        }
+        if (args.length - i != 1 || writers <= 0 || calls <= 0)
+            usage();
+
+        RegionDecoderScene scene = new RegionDecoderScene(new JvmPlatform(false),
+                ImageIoRegionDecoder.forFile(new File(args[i])), threads);
+        scene.getMetrics().setEnabled(true);
+        scene.getViewport().setViewportSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+        scene.start();
+        String failure;
+        try {
+            failure = stress(scene, writers, calls);
+            if (failure == null)
+                failure = checkFinalState(scene);
+            if (failure == null)
+                failure = checkSettles(scene);
+        } finally {
+            scene.stop();
+            scene.recycle();
+        }
+        if (failure != null) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+        System.out.printf("%d threads made %d calls each, nothing lost%n", writers, calls);
+    }
+
+    private static void usage() {
+        System.err.println("usage: ViewportStressTest [--writers n] [--calls n] [--threads n] image");
+        System.exit(2);
+    }
+
+    /**
+     * Run the writers, a reader and a drawer until the writers are done
+     *
+     * @return what went wrong, or null
+     */
+    private static String stress(final PortableScene scene, int writers, final int calls)
+            throws InterruptedException {
+        final PortableScene.Viewport viewport = scene.getViewport();
+        final int sceneWidth = scene.getSceneWidth();
+        final int sceneHeight = scene.getSceneHeight();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        List<Thread> writerThreads = new ArrayList<Thread>();
+        for (int w = 0; w < writers; w++) {
+            final Random random = new Random(w);
+            writerThreads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int call = 0; call < calls; call++) {
+                        switch (random.nextInt(3)) {
+                            case 0:
+                                viewport.setOrigin(random.nextInt(sceneWidth), random.nextInt(sceneHeight));
+                                break;
+                            case 1:
+                                float focusX = random.nextInt(SCREEN_WIDTH);
+                                float focusY = random.nextInt(SCREEN_HEIGHT);
+                                viewport.zoom(ZOOM_STEP, focusX, focusY);
+                                viewport.zoom(1 / ZOOM_STEP, focusX, focusY);
+                                break;
+                            default:
+                                if (random.nextBoolean())
+                                    viewport.setViewportSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+                                else
+                                    viewport.setViewportSize(SCREEN_HEIGHT, SCREEN_WIDTH);
+                                break;
+                        }
+                    }
+                }
+            }, "writer" + w));
+        }
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PortableScene.ViewportState state = new PortableScene.ViewportState();
+                await(start);
+                while (writing.get()) {
+                    viewport.getState(state);
+                    String torn = checkState(state, sceneWidth, sceneHeight);
+                    if (torn != null) {
+                        failure.compareAndSet(null, torn);
+                        return;
+                    }
+                }
+            }
+        }, "reader");
+        Thread drawer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(start);
+                while (writing.get())
+                    scene.drawFrame();
+            }
+        }, "drawer");
+
+        for (Thread thread : writerThreads)
+            thread.start();
+        reader.start();
+        drawer.start();
+        start.countDown();
+        for (Thread thread : writerThreads)
+            thread.join();
+        writing.set(false);
+        reader.join();
+        drawer.join();
+        return failure.get();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return how the state is torn, or null if it is one a single write could leave
+     */
+    private static String checkState(PortableScene.ViewportState state, int sceneWidth, int sceneHeight) {
+        boolean portrait = state.physicalWidth == SCREEN_WIDTH && state.physicalHeight == SCREEN_HEIGHT;
+        boolean landscape = state.physicalWidth == SCREEN_HEIGHT && state.physicalHeight == SCREEN_WIDTH;
+        if (!portrait && !landscape)
+            return String.format("screen size %dx%d was never set", state.physicalWidth, state.physicalHeight);
+        if (state.left < 0 || state.top < 0 || state.width() <= 0 || state.height() <= 0
+                || state.left > sceneWidth || state.top > sceneHeight)
+            return String.format("viewport (%d,%d,%d,%d) is off the scene",
+                    state.left, state.top, state.right, state.bottom);
+        return null;
+    }
+
+    /**
+     * Set a size and an origin from this thread alone, they must be what is read back
+     */
+    private static String checkFinalState(PortableScene scene) {
+        PortableScene.Viewport viewport = scene.getViewport();
+        PortableScene.ViewportState state = viewport.getState(new PortableScene.ViewportState());
+        if (Math.abs(state.zoom - 1f) > ZOOM_TOLERANCE)
+            return String.format("zoom ended at %.4f instead of 1, a zoom was lost", state.zoom);
+        viewport.setViewportSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+        int left = (scene.getSceneWidth() - SCREEN_WIDTH) / 3;
+        int top = (scene.getSceneHeight() - SCREEN_HEIGHT) / 3;
+        viewport.setOrigin(left, top);
+        viewport.getState(state);
+        if (state.left != left || state.top != top || state.physicalWidth != SCREEN_WIDTH
+                || state.physicalHeight != SCREEN_HEIGHT || state.width() != SCREEN_WIDTH
+                || state.height() != SCREEN_HEIGHT)
+            return String.format("set %dx%d at (%d,%d) but read back %dx%d at (%d,%d,%d,%d)",
+                    SCREEN_WIDTH, SCREEN_HEIGHT, left, top, state.physicalWidth, state.physicalHeight,
+                    state.left, state.top, state.right, state.bottom);
+        return null;
+    }
+
+    /**
+     * Draw until the cache is READY with every visible tile decoded
+     */
+    private static String checkSettles(PortableScene scene) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        SceneMetrics.Snapshot snapshot;
+        do {
+            scene.drawFrame();
+            Thread.sleep(16);
+            snapshot = scene.getMetrics().snapshot();
+            if ("READY".equals(snapshot.state) && !scene.isLastFrameSampleFallback()
+                    && scene.getDecodeBacklog() == 0)
+                return null;
+        } while (System.currentTimeMillis() < deadline);
+        return String.format("the cache was still %s after %ds, sample shown %b, %d decodes queued",
+                snapshot.state, SETTLE_MILLIS / 1000, scene.isLastFrameSampleFallback(), scene.getDecodeBacklog());
+    }
+}
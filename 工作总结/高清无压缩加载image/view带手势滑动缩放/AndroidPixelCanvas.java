@@ -0,0 +1,30 @@
+package com.bollin1206.superbigimage.view;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/**
+ * 安卓画布
+ * A {@link PixelCanvas} drawing bitmaps with a Canvas
+ */
+final class AndroidPixelCanvas implements PixelCanvas {
+    private final Canvas canvas = new Canvas();
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+
+    @Override
+    public void setTarget(Pixels target) {
+        canvas.setBitmap(AndroidPixels.unwrap(target));
+    }
+
+    @Override
+    public void drawPixels(Pixels pixels, SceneGeometry.Box src, SceneGeometry.Box dst) {
+        Rect srcOrNull = null;
+        if (src != null) {
+            srcRect.set(src.left, src.top, src.right, src.bottom);
+            srcOrNull = srcRect;
+        }
+        dstRect.set(dst.left, dst.top, dst.right, dst.bottom);
+        canvas.drawBitmap(AndroidPixels.unwrap(pixels), srcOrNull, dstRect, null);
+    }
+}
@@ -0,0 +1,74 @@
+package com.bollin1206.superbigimage.view;
+
+import android.graphics.Bitmap;
+
+/**
+ * 安卓位图像素
+ * The {@link Pixels} of a Bitmap. The format is the ordinal of its config, so bitmaps
+ * are only pooled for decodes of the same config.
+ */
+final class AndroidPixels implements Pixels {
+    private final Bitmap bitmap;
+
+    AndroidPixels(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    /**
+     * @return the pixels of the bitmap, or null for a null bitmap
+     */
+    static Pixels wrap(Bitmap bitmap) {
+        return bitmap == null ? null : new AndroidPixels(bitmap);
+    }
+
+    /**
+     * @return the bitmap of the pixels, or null for null pixels
+     */
+    static Bitmap unwrap(Pixels pixels) {
+        return pixels == null ? null : ((AndroidPixels) pixels).bitmap;
+    }
+
+    static int formatOf(Bitmap.Config config) {
+        return config == null ? -1 : config.ordinal();
+    }
+
+    Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return bitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return bitmap.getHeight();
+    }
+
+    @Override
+    public int getByteCount() {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @Override
+    public int getFormat() {
+        return formatOf(bitmap.getConfig());
+    }
+
+    @Override
+    public boolean isReusable() {
+        // inBitmap needs a mutable bitmap of a known config
+        return bitmap.isMutable() && bitmap.getConfig() != null;
+    }
+
+    @Override
+    public void recycle() {
+        bitmap.recycle();
+    }
+
+    @Override
+    public boolean isRecycled() {
+        return bitmap.isRecycled();
+    }
+}
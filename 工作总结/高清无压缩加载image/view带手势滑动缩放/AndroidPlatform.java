@@ -0,0 +1,54 @@
+package com.bollin1206.superbigimage.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 安卓平台
+ * Frames are RGB_565 bitmaps, the clock is {@link SystemClock#uptimeMillis()} like the one
+ * of MotionEvents, and the engine logs in detail while a debugger is attached.
+ */
+final class AndroidPlatform extends Platform {
+    static final AndroidPlatform INSTANCE = new AndroidPlatform();
+
+    private AndroidPlatform() {
+    }
+
+    @Override
+    public Pixels createPixels(int width, int height) {
+        return new AndroidPixels(Bitmap.createBitmap(width, height, Config.RGB_565));
+    }
+
+    @Override
+    public PixelCanvas createCanvas() {
+        return new AndroidPixelCanvas();
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public boolean isVerbose() {
+        return Debug.isDebuggerConnected();
+    }
+
+    @Override
+    public void debug(String tag, String message) {
+        Log.d(tag, message);
+    }
+
+    @Override
+    public void warn(String tag, String message) {
+        Log.w(tag, message);
+    }
+
+    @Override
+    public void error(String tag, String message, Throwable error) {
+        Log.e(tag, message, error);
+    }
+}
@@ -0,0 +1,89 @@
+package com.bollin1206.superbigimage.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+/**
+ * 安卓区域解码器
+ * A {@link RegionDecoder} over BitmapRegionDecoder, decoding into the pixels it is handed
+ * through {@link BitmapFactory.Options#inBitmap}
+ */
+public final class AndroidRegionDecoder implements RegionDecoder {
+    private final BitmapRegionDecoder decoder;
+    private final Config config;
+    private final Rect rect = new Rect();
+
+    public AndroidRegionDecoder(BitmapRegionDecoder decoder, Config config) {
+        this.decoder = decoder;
+        this.config = config;
+    }
+
+    /**
+     * Decoders of the image file at path, each with its own BitmapRegionDecoder
+     */
+    public static Source forFile(final String path, final Config config) {
+        return new Source() {
+            @Override
+            public RegionDecoder open() throws IOException {
+                return new AndroidRegionDecoder(BitmapRegionDecoder.newInstance(path, false), config);
+            }
+        };
+    }
+
+    /**
+     * Decoders of the encoded image in memory
+     */
+    public static Source forBytes(final byte[] encoded, final Config config) {
+        return new Source() {
+            @Override
+            public RegionDecoder open() throws IOException {
+                return new AndroidRegionDecoder(
+                        BitmapRegionDecoder.newInstance(encoded, 0, encoded.length, false), config);
+            }
+        };
+    }
+
+    @Override
+    public int getWidth() {
+        return decoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return decoder.getHeight();
+    }
+
+    @Override
+    public Pixels decodeRegion(SceneGeometry.Box region, int sampleSize, Pixels reuse) {
+        rect.set(region.left, region.top, region.right, region.bottom);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = AndroidPixels.unwrap(reuse);
+        Bitmap bitmap;
+        try {
+            bitmap = decoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null)
+                throw e;
+            // The decoder couldn't reuse the bitmap, decode into a new one. The
+            // bitmap stays the caller's, see RegionDecoder#decodeRegion
+            options.inBitmap = null;
+            bitmap = decoder.decodeRegion(rect, options);
+        }
+        if (reuse != null && AndroidPixels.unwrap(reuse) == bitmap)
+            return reuse;
+        return AndroidPixels.wrap(bitmap);
+    }
+
+    @Override
+    public void recycle() {
+        decoder.recycle();
+    }
+}
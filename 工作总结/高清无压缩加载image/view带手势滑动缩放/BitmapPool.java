@@ -0,0 +1,95 @@
+package com.bollin1206.superbigimage.view;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * 位图复用池
+ * Keeps bitmaps that fell out of the tile cache so that the next decode of the same
+ * size can write into one of them through {@link android.graphics.BitmapFactory.Options#inBitmap}
+ * instead of allocating new pixel memory. Bitmaps are bucketed by exact width, height
+ * and config, because a region decoder draws into the top left of a bigger bitmap
+ * and leaves the rest of it stale. The bitmaps are {@link Pixels} of whatever platform
+ * the scene runs on.
+ */
+class BitmapPool {
+    private final HashMap<Long, ArrayDeque<Pixels>> buckets = new HashMap<Long, ArrayDeque<Pixels>>();
+    private long maxBytes;
+    private long pooledBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static long key(int width, int height, int format) {
+        return ((long) width << 32) | ((long) height << 8) | (format & 0xff);
+    }
+
+    /**
+     * Take a bitmap of exactly this size and format out of the pool
+     *
+     * @param format see {@link Pixels#getFormat()}
+     * @return the bitmap, or null if there is none
+     */
+    synchronized Pixels get(int width, int height, int format) {
+        ArrayDeque<Pixels> bucket = buckets.get(key(width, height, format));
+        Pixels bitmap = bucket == null ? null : bucket.pollLast();
+        if (bitmap == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        pooledBytes -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Give a bitmap nobody draws anymore to the pool. It is recycled if it can't be
+     * reused or the pool is full.
+     */
+    synchronized void put(Pixels bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        int bytes = bitmap.getByteCount();
+        if (!bitmap.isReusable() || pooledBytes + bytes > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getFormat());
+        ArrayDeque<Pixels> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Pixels>();
+            buckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        pooledBytes += bytes;
+    }
+
+    synchronized void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+        if (pooledBytes > maxBytes)
+            clear();
+    }
+
+    synchronized void clear() {
+        for (ArrayDeque<Pixels> bucket : buckets.values())
+            for (Pixels bitmap : bucket)
+                bitmap.recycle();
+        buckets.clear();
+        pooledBytes = 0;
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return the share of {@link #get} calls that found a bitmap, 0..1
+     */
+    synchronized float getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0f : (float) hits / total;
+    }
+}
@@ -0,0 +1,585 @@
+package com.bollin1206.superbigimage.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多图拼接场景
+ * Many images laid out as one continuous surface, e.g. the pages of a scanned
+ * document or the sheets of a map. The pages sit in a grid of equal cells, row by
+ * row, each centered in its cell, so finding the pages under a rectangle takes no
+ * search however many there are.
+ * <p>A page is opened, i.e. gets a sample, only when a tile of the cache window
+ * needs it, and closed again once the cache window has moved far away from it.
+ * Tiles as coarse as the sample or coarser are drawn from it; only finer ones open
+ * a decoder. So zoomed out, a tile over many pages costs a sample per page once,
+ * not a decoder and a decode. The memory of the scene is the cache budget plus
+ * a sample of at most {@link #SAMPLE_PIXELS} for every page near the cache window,
+ * and a decoder for the few the window shows in detail, whether there are 10 pages
+ * or 10,000. Until a page is open, the sample shows it as a blank sheet.</p>
+ */
+public class CompositeScene extends Scene {
+    private static final String TAG = CompositeScene.class.getSimpleName();
+
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+    /**
+     * How many pages may be open at the same time at least. More may be, as many as
+     * there are near the cache window, see {@link #maxOpenPages}.
+     */
+    private static final int MIN_OPEN_PAGES = 8;
+    /**
+     * The most pixels the sample of one page may have
+     */
+    private static final int SAMPLE_PIXELS = 512 * 1024;
+    /**
+     * Pages further than this many cache windows from the cache window are closed
+     */
+    private static final int KEEP_WINDOWS = 1;
+
+    /**
+     * Where the encoded image of a page comes from. Opened on a decode thread.
+     */
+    public interface PageSource {
+        BitmapRegionDecoder openDecoder() throws IOException;
+    }
+
+    /**
+     * One image of the composite, and where it sits once laid out
+     */
+    public static final class Page {
+        final PageSource source;
+        final int width;
+        final int height;
+        /**
+         * Where the page is within the scene, set by the layout
+         */
+        final Rect bounds = new Rect();
+        /**
+         * The decoder, once a tile finer than the sample was decoded from the page.
+         * Guarded by the page.
+         */
+        BitmapRegionDecoder decoder;
+        /**
+         * The sample while the page is open, read by the draw thread without a lock
+         */
+        volatile Bitmap sample;
+        /**
+         * The sample is the page scaled down by 2^sampleShift
+         */
+        final int sampleShift;
+        /**
+         * When the page was last decoded from, guarded by {@link #openPages}
+         */
+        long lastUsed;
+
+        /**
+         * @param width  the width of the image, as {@link BitmapFactory.Options#outWidth} gives it
+         * @param height the height of the image
+         */
+        public Page(PageSource source, int width, int height) {
+            this.source = source;
+            this.width = width;
+            this.height = height;
+            int shift = 0;
+            while (((long) width >> shift) * ((long) height >> shift) > SAMPLE_PIXELS)
+                shift++;
+            sampleShift = shift;
+        }
+
+        /**
+         * The image file at the path. Only its header is read now.
+         */
+        public static Page fromFile(final String path) throws IOException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0)
+                throw new IOException("can't read the size of " + path);
+            return new Page(new PageSource() {
+                @Override
+                public BitmapRegionDecoder openDecoder() throws IOException {
+                    return BitmapRegionDecoder.newInstance(path, false);
+                }
+            }, options.outWidth, options.outHeight);
+        }
+    }
+
+    private final Page[] pages;
+    private final int columns;
+    private final int rows;
+    /**
+     * The size of a grid cell, gap included
+     */
+    private final int cellWidth;
+    private final int cellHeight;
+
+    /**
+     * The open pages, least recently used first. Also guards {@link #keepRect}
+     * and {@link #maxOpenPages}.
+     */
+    private final List<Page> openPages = new ArrayList<Page>(MIN_OPEN_PAGES + 1);
+    /**
+     * Pages outside this stay closed
+     */
+    private final Rect keepRect = new Rect();
+    /**
+     * How many pages meet {@link #keepRect}, but at least {@link #MIN_OPEN_PAGES}.
+     * Closing the least recently used one sooner would only open it again for the
+     * next tile, and leave it blank meanwhile.
+     */
+    private int maxOpenPages = MIN_OPEN_PAGES;
+    private long useCount = 0;
+
+    /**
+     * @param pages   the images in reading order
+     * @param columns how many pages side by side, 1 for a document
+     * @param gap     scene pixels between neighbouring pages
+     */
+    public CompositeScene(List<Page> pages, int columns, int gap) {
+        this(pages, columns, gap, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param decodeThreads How many tiles to decode at the same time. A page only
+     *                      decodes one region at a time, so the threads help most
+     *                      when the cache window spans several pages.
+     */
+    public CompositeScene(List<Page> pages, int columns, int gap, int decodeThreads) {
+        super(decodeThreads);
+        if (pages.isEmpty())
+            throw new IllegalArgumentException("no pages");
+        this.pages = pages.toArray(new Page[pages.size()]);
+        this.columns = Math.max(1, Math.min(columns, this.pages.length));
+        this.rows = (this.pages.length + this.columns - 1) / this.columns;
+
+        int maxWidth = 0;
+        int maxHeight = 0;
+        for (Page page : this.pages) {
+            maxWidth = Math.max(maxWidth, page.width);
+            maxHeight = Math.max(maxHeight, page.height);
+        }
+        cellWidth = maxWidth + gap;
+        cellHeight = maxHeight + gap;
+        long width = (long) this.columns * cellWidth - gap;
+        long height = (long) rows * cellHeight - gap;
+        if (width > Integer.MAX_VALUE || height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("the pages don't fit in a scene");
+        setSceneSize((int) width, (int) height);
+        for (int i = 0; i < this.pages.length; i++) {
+            Page page = this.pages[i];
+            int left = (i % this.columns) * cellWidth + (maxWidth - page.width) / 2;
+            int top = (i / this.columns) * cellHeight + (maxHeight - page.height) / 2;
+            page.bounds.set(left, top, left + page.width, top + page.height);
+        }
+
+        initialize();
+    }
+
+    /**
+     * @return where the page at this index, in the order given to the constructor, sits in the scene
+     */
+    public Rect getPageBounds(int index) {
+        return new Rect(pages[index].bounds);
+    }
+
+    public int getPageCount() {
+        return pages.length;
+    }
+
+    /**
+     * @return how many pages are open right now
+     */
+    public int getOpenPageCount() {
+        synchronized (openPages) {
+            return openPages.size();
+        }
+    }
+
+    /**
+     * Close every page, e.g. when the scene is no longer shown
+     */
+    @Override
+    public void close() {
+        List<Page> closing;
+        synchronized (openPages) {
+            closing = new ArrayList<Page>(openPages);
+            openPages.clear();
+        }
+        for (Page page : closing)
+            closePage(page);
+        updateSampleBytes();
+    }
+
+    //region page lookup
+
+    private int firstColumn(Rect rect) {
+        return Math.max(0, rect.left / cellWidth);
+    }
+
+    private int lastColumn(Rect rect) {
+        return Math.min(columns - 1, (rect.right - 1) / cellWidth);
+    }
+
+    private int firstRow(Rect rect) {
+        return Math.max(0, rect.top / cellHeight);
+    }
+
+    private int lastRow(Rect rect) {
+        return Math.min(rows - 1, (rect.bottom - 1) / cellHeight);
+    }
+
+    /**
+     * @return the page of the cell, or null past the last page
+     */
+    private Page pageAt(int col, int row) {
+        int index = row * columns + col;
+        return index < pages.length ? pages[index] : null;
+    }
+    //endregion
+
+    //region open/close pages
+
+    /**
+     * Count the page as open, and take the pages that should close now out of
+     * {@link #openPages}. Called with the page's lock held.
+     *
+     * @param closing gets the pages the caller must close once it let go of the page
+     */
+    private void usePage(Page page, List<Page> closing) {
+        synchronized (openPages) {
+            page.lastUsed = ++useCount;
+            if (!openPages.contains(page))
+                openPages.add(page);
+            for (int i = openPages.size() - 1; i >= 0; i--) {
+                Page open = openPages.get(i);
+                if (open != page && !Rect.intersects(keepRect, open.bounds)) {
+                    openPages.remove(i);
+                    closing.add(open);
+                }
+            }
+            while (openPages.size() > maxOpenPages) {
+                Page eldest = null;
+                for (Page open : openPages)
+                    if (open != page && (eldest == null || open.lastUsed < eldest.lastUsed))
+                        eldest = open;
+                openPages.remove(eldest);
+                closing.add(eldest);
+            }
+        }
+    }
+
+    /**
+     * Open the decoder of the page, unless it is open. Called with the page's lock held.
+     */
+    private boolean openDecoder(Page page) {
+        if (page.decoder != null)
+            return true;
+        try {
+            page.decoder = page.source.openDecoder();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "can't open a page", e);
+            return false;
+        }
+    }
+
+    /**
+     * Decode the sample of the page, unless it is there. Called with the page's lock held.
+     *
+     * @param keepDecoder whether to keep the decoder open for finer tiles, if it had
+     *                    to be opened for the sample
+     * @return the sample, or null if the page can't be opened
+     */
+    private Bitmap openSample(Page page, boolean keepDecoder) {
+        Bitmap sample = page.sample;
+        if (sample != null)
+            return sample;
+        boolean opened = page.decoder == null;
+        if (!openDecoder(page))
+            return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = CONFIG;
+        options.inSampleSize = 1 << page.sampleShift;
+        sample = page.decoder.decodeRegion(new Rect(0, 0, page.width, page.height), options);
+        page.sample = sample;
+        if (opened && !keepDecoder) {
+            page.decoder.recycle();
+            page.decoder = null;
+        }
+        return sample;
+    }
+
+    private void closePage(Page page) {
+        synchronized (page) {
+            if (page.decoder != null) {
+                page.decoder.recycle();
+                page.decoder = null;
+            }
+            // The draw thread may still be drawing it, leave recycling to the GC
+            page.sample = null;
+        }
+    }
+
+    private void updateSampleBytes() {
+        long bytes = 0;
+        synchronized (openPages) {
+            for (Page page : openPages) {
+                Bitmap sample = page.sample;
+                if (sample != null)
+                    bytes += sample.getRowBytes() * sample.getHeight();
+            }
+        }
+        getMemoryBudget().setSampleBytes(bytes);
+    }
+    //endregion
+
+    //region fillCache
+
+    @Override
+    protected Bitmap fillCache(Rect origin, int sampleSize) {
+        int width = SceneGeometry.scaledSize(origin.width(), sampleSize);
+        int height = SceneGeometry.scaledSize(origin.height(), sampleSize);
+        Bitmap reuse = obtainBitmap(width, height, CONFIG);
+
+        // Most tiles lie within one page, decode them straight into the tile
+        Page only = null;
+        int parts = 0;
+        for (int row = firstRow(origin); row <= lastRow(origin); row++) {
+            for (int col = firstColumn(origin); col <= lastColumn(origin); col++) {
+                Page page = pageAt(col, row);
+                if (page != null && Rect.intersects(page.bounds, origin)) {
+                    only = page;
+                    parts++;
+                }
+            }
+        }
+        if (parts == 1 && only.bounds.contains(origin)) {
+            Rect pageRect = new Rect(origin);
+            pageRect.offset(-only.bounds.left, -only.bounds.top);
+            return decodePage(only, pageRect, sampleSize, reuse);
+        }
+
+        // Otherwise put the parts of the pages together over the background
+        Bitmap bitmap = reuse != null ? reuse : Bitmap.createBitmap(width, height, CONFIG);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(BACKGROUND);
+        Rect part = new Rect();
+        Rect dstRect = new Rect();
+        for (int row = firstRow(origin); row <= lastRow(origin); row++) {
+            for (int col = firstColumn(origin); col <= lastColumn(origin); col++) {
+                Page page = pageAt(col, row);
+                if (page == null || !part.setIntersect(page.bounds, origin))
+                    continue;
+                if (isFillCancelled()) {
+                    releaseBitmap(bitmap);
+                    return null;
+                }
+                dstRect.set((part.left - origin.left) / sampleSize, (part.top - origin.top) / sampleSize,
+                        (part.right - origin.left) / sampleSize, (part.bottom - origin.top) / sampleSize);
+                part.offset(-page.bounds.left, -page.bounds.top);
+                Bitmap decoded = decodePage(page, part, sampleSize,
+                        obtainBitmap(SceneGeometry.scaledSize(part.width(), sampleSize),
+                                SceneGeometry.scaledSize(part.height(), sampleSize), CONFIG));
+                if (decoded == null)
+                    continue;
+                canvas.drawBitmap(decoded, null, dstRect, null);
+                releaseBitmap(decoded);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode a region of the page, opening it first if needed
+     *
+     * @param pageRect the region in the page's own pixels
+     * @return the bitmap, or null if the page can't be opened
+     */
+    private Bitmap decodePage(Page page, Rect pageRect, int sampleSize, Bitmap reuse) {
+        List<Page> closing = new ArrayList<Page>();
+        Bitmap bitmap = null;
+        boolean sampled;
+        synchronized (page) {
+            usePage(page, closing);
+            sampled = page.sample == null;
+            if (sampleSize >= 1 << page.sampleShift) {
+                // The sample has all the detail the tile can show
+                Bitmap sample = openSample(page, false);
+                if (sample != null)
+                    bitmap = drawFromSample(page, sample, pageRect, sampleSize, reuse);
+                else
+                    releaseBitmap(reuse);
+            } else if (openSample(page, true) != null && openDecoder(page)) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = CONFIG;
+                options.inSampleSize = sampleSize;
+                options.inMutable = true;
+                options.inBitmap = reuse;
+                try {
+                    bitmap = page.decoder.decodeRegion(pageRect, options);
+                } catch (IllegalArgumentException e) {
+                    // The decoder couldn't reuse the bitmap, decode into a new one
+                    releaseBitmap(options.inBitmap);
+                    options.inBitmap = null;
+                    bitmap = page.decoder.decodeRegion(pageRect, options);
+                }
+            } else {
+                releaseBitmap(reuse);
+            }
+            sampled &= page.sample != null;
+        }
+        if (sampled)
+            // The sample shows through where tiles are still missing
+            notifyChanged();
+        // Not while holding the page, two threads closing each other's pages would deadlock
+        for (Page close : closing)
+            closePage(close);
+        if (sampled || !closing.isEmpty())
+            updateSampleBytes();
+        return bitmap;
+    }
+
+    private static final Paint samplePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Scale a region of the page's sample to the tile, for tiles no finer than the sample
+     *
+     * @param pageRect the region in the page's own pixels
+     */
+    private Bitmap drawFromSample(Page page, Bitmap sample, Rect pageRect, int sampleSize, Bitmap reuse) {
+        Bitmap bitmap = reuse != null ? reuse : Bitmap.createBitmap(
+                SceneGeometry.scaledSize(pageRect.width(), sampleSize),
+                SceneGeometry.scaledSize(pageRect.height(), sampleSize), CONFIG);
+        int shift = page.sampleShift;
+        int round = (1 << shift) - 1;
+        // Rounded out, so a sliver of a page still gets a pixel of the sample
+        Rect srcRect = new Rect(pageRect.left >> shift, pageRect.top >> shift,
+                Math.min(sample.getWidth(), (pageRect.right + round) >> shift),
+                Math.min(sample.getHeight(), (pageRect.bottom + round) >> shift));
+        new Canvas(bitmap).drawBitmap(sample, srcRect,
+                new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()), samplePaint);
+        return bitmap;
+    }
+    //endregion
+
+    //region draw the samples
+
+    private static final int BACKGROUND = Color.DKGRAY;
+    private static final Paint blankPaint = new Paint();
+
+    static {
+        blankPaint.setColor(Color.LTGRAY);
+    }
+
+    /**
+     * Only the draw thread draws the samples, once per frame, so these are reused
+     */
+    private final Canvas sampleCanvas = new Canvas();
+    private final Rect sampleSrcRect = new Rect();
+    private final Rect sampleDstRect = new Rect();
+    private final Rect samplePart = new Rect();
+
+    @Override
+    protected void drawSampleRectIntoBitmap(Bitmap currentViewportBitmap, Rect windowViewportRect) {
+        if (currentViewportBitmap == null || windowViewportRect.isEmpty())
+            return;
+        Canvas canvas = sampleCanvas;
+        canvas.setBitmap(currentViewportBitmap);
+        canvas.drawColor(BACKGROUND);
+        float scaleX = (float) canvas.getWidth() / windowViewportRect.width();
+        float scaleY = (float) canvas.getHeight() / windowViewportRect.height();
+        Rect part = samplePart;
+        for (int row = firstRow(windowViewportRect); row <= lastRow(windowViewportRect); row++) {
+            for (int col = firstColumn(windowViewportRect); col <= lastColumn(windowViewportRect); col++) {
+                Page page = pageAt(col, row);
+                if (page == null || !part.setIntersect(page.bounds, windowViewportRect))
+                    continue;
+                Rect dstRect = sampleDstRect;
+                dstRect.set(
+                        Math.round((part.left - windowViewportRect.left) * scaleX),
+                        Math.round((part.top - windowViewportRect.top) * scaleY),
+                        Math.round((part.right - windowViewportRect.left) * scaleX),
+                        Math.round((part.bottom - windowViewportRect.top) * scaleY));
+                Bitmap sample = page.sample;
+                if (sample == null) {
+                    // Not open yet, or closed since
+                    canvas.drawRect(dstRect, blankPaint);
+                    continue;
+                }
+                int shift = page.sampleShift;
+                Rect srcRect = sampleSrcRect;
+                srcRect.set((part.left - page.bounds.left) >> shift, (part.top - page.bounds.top) >> shift,
+                        (part.right - page.bounds.left) >> shift, (part.bottom - page.bounds.top) >> shift);
+                canvas.drawBitmap(sample, srcRect, dstRect, null);
+            }
+        }
+    }
+    //endregion
+
+    private final Rect calculatedCacheWindowRect = new Rect();
+    private final SceneGeometry.Box viewportBox = new SceneGeometry.Box();
+    private final SceneGeometry.Box cacheWindowBox = new SceneGeometry.Box();
+
+    @Override
+    protected Rect calculateCacheWindow(Rect viewportRect, int sampleSize, int leadX, int leadY) {
+        double pixels = (double) getMemoryBudget().getWindowBytes() / Scene.bytesPerPixel(CONFIG);
+        Point sceneSizePoint = getSceneSize();
+        viewportBox.set(viewportRect.left, viewportRect.top, viewportRect.right, viewportRect.bottom);
+        SceneGeometry.cacheWindow(viewportBox, sampleSize, pixels, leadX, leadY,
+                sceneSizePoint.x, sceneSizePoint.y, cacheWindowBox);
+        calculatedCacheWindowRect.set(cacheWindowBox.left, cacheWindowBox.top, cacheWindowBox.right, cacheWindowBox.bottom);
+
+        // Pages this far from the window close the next time a page opens
+        int marginX = calculatedCacheWindowRect.width() * KEEP_WINDOWS;
+        int marginY = calculatedCacheWindowRect.height() * KEEP_WINDOWS;
+        Rect keep = new Rect(calculatedCacheWindowRect);
+        keep.inset(-marginX, -marginY);
+        int near = 0;
+        for (int row = firstRow(keep); row <= lastRow(keep); row++) {
+            for (int col = firstColumn(keep); col <= lastColumn(keep); col++) {
+                Page page = pageAt(col, row);
+                if (page != null && Rect.intersects(page.bounds, keep))
+                    near++;
+            }
+        }
+        synchronized (openPages) {
+            keepRect.set(keep);
+            maxOpenPages = Math.max(MIN_OPEN_PAGES, near);
+        }
+        return calculatedCacheWindowRect;
+    }
+
+    @Override
+    protected void fillCacheOutOfMemoryError(OutOfMemoryError error) {
+        getMemoryBudget().onOutOfMemory();
+        // The samples go first, they come back as the pages are decoded from again.
+        // The decoders stay, closing one would wait for its decode under the cache lock.
+        synchronized (openPages) {
+            for (Page page : openPages)
+                page.sample = null;
+        }
+        updateSampleBytes();
+        Log.e(TAG, String.format("caught oom -- cache now at %d percent.", getMemoryBudget().getPercent()));
+    }
+
+    @Override
+    protected void trimSample() {
+        // Waits for a page that is being decoded from, which is fine off the UI thread
+        close();
+    }
+
+    @Override
+    protected void drawComplete(Canvas canvas) {
+    }
+}
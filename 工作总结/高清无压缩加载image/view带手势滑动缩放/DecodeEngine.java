@@ -0,0 +1,303 @@
+package com.bollin1206.superbigimage.view;
+
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 并行解码
+ * Decodes tiles on a fixed pool of threads. Requests are served by priority: tiles
+ * that are visible come before the prefetch margins, and nearer tiles before farther
+ * ones. Requests are grouped in batches, one per cache fill. Starting a new batch
+ * drops whatever is still queued from the old one, and a request that is no longer
+ * wanted by the time a thread gets to it is dropped without decoding. Requests that
+ * are being decoded when a new batch starts are cancelled if the new batch doesn't
+ * want them; the client checks {@link #isCancelled()} between the parts of a long
+ * decode and gives up early. The time spent on cancelled decodes is counted as wasted.
+ */
+class DecodeEngine {
+    private static final String TAG = DecodeEngine.class.getSimpleName();
+
+    interface Client {
+        /**
+         * Whether the request still matters. Called right before it is decoded,
+         * without any engine lock held.
+         */
+        boolean isWanted(Request request);
+
+        /**
+         * Decode the request. Called concurrently from all the engine threads.
+         */
+        Pixels decode(Request request);
+
+        void onDecoded(Request request, Pixels pixels);
+
+        void onOutOfMemory(Request request, OutOfMemoryError error);
+
+        /**
+         * Every request of the batch has been decoded or dropped
+         */
+        void onBatchDone(int batch, int decoded, int dropped, long millis);
+    }
+
+    static class Request implements Comparable<Request> {
+        private static final AtomicLong nextSequence = new AtomicLong();
+
+        final int batch;
+        final int level;
+        final int col;
+        final int row;
+        final SceneGeometry.Box rect = new SceneGeometry.Box();
+        /**
+         * Visible tiles are decoded before the prefetch margins
+         */
+        final boolean visible;
+        /**
+         * Squared distance between the tile's center and the viewport's center
+         */
+        final long distance;
+        private final long sequence = nextSequence.getAndIncrement();
+        /**
+         * A newer batch doesn't want this request anymore
+         */
+        volatile boolean cancelled = false;
+
+        Request(int batch, int level, int col, int row, SceneGeometry.Box rect, boolean visible, long distance) {
+            this.batch = batch;
+            this.level = level;
+            this.col = col;
+            this.row = row;
+            this.rect.set(rect);
+            this.visible = visible;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (visible != other.visible)
+                return visible ? -1 : 1;
+            if (distance != other.distance)
+                return distance < other.distance ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final Client client;
+    private final Platform platform;
+    private final int threadCount;
+    private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<Request>();
+    /**
+     * The requests being decoded right now by their tile key, so a new batch doesn't
+     * decode them twice, and can cancel them
+     */
+    private final HashMap<Long, Request> inFlight = new HashMap<Long, Request>();
+    private Worker[] workers;
+
+    private int batch = 0;
+    private boolean batchSubmitted = false;
+    private int pending = 0;
+    private int decoded = 0;
+    private int dropped = 0;
+    private long batchStart = 0;
+    private int cancelled = 0;
+    private long wastedMillis = 0;
+
+    DecodeEngine(Client client, Platform platform, int threadCount) {
+        this.client = client;
+        this.platform = platform;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    int getThreadCount() {
+        return threadCount;
+    }
+
+    void start() {
+        stop();
+        workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker();
+            workers[i].setName("decodeThread-" + i);
+            workers[i].start();
+        }
+    }
+
+    void stop() {
+        if (workers == null)
+            return;
+        for (Worker worker : workers) {
+            worker.running = false;
+            worker.interrupt();
+        }
+        for (Worker worker : workers) {
+            boolean retry = true;
+            while (retry) {
+                try {
+                    worker.join();
+                    retry = false;
+                } catch (InterruptedException e) {
+                    // we will try it again and again...
+                }
+            }
+        }
+        workers = null;
+        queue.clear();
+    }
+
+    /**
+     * Start a new batch, dropping every request of the previous one that is still queued,
+     * and cancelling those being decoded that the client no longer wants.
+     *
+     * @return the id to give to the requests of the batch
+     */
+    int beginBatch() {
+        Request[] decoding;
+        int batchId;
+        synchronized (this) {
+            queue.clear();
+            batch++;
+            batchSubmitted = false;
+            pending = 0;
+            decoded = 0;
+            dropped = 0;
+            batchStart = System.currentTimeMillis();
+            batchId = batch;
+            decoding = inFlight.values().toArray(new Request[inFlight.size()]);
+        }
+        for (Request request : decoding)
+            if (!client.isWanted(request))
+                request.cancelled = true;
+        return batchId;
+    }
+
+    /**
+     * Whether the request the calling engine thread is decoding has been cancelled.
+     * Always false on other threads.
+     */
+    static boolean isCancelled() {
+        Thread thread = Thread.currentThread();
+        if (!(thread instanceof Worker))
+            return false;
+        Request request = ((Worker) thread).current;
+        return request != null && request.cancelled;
+    }
+
+    /**
+     * @return how many decodes were cancelled part way
+     */
+    synchronized int getCancelledCount() {
+        return cancelled;
+    }
+
+    /**
+     * @return the milliseconds spent decoding requests that were cancelled
+     */
+    synchronized long getWastedMillis() {
+        return wastedMillis;
+    }
+
+    /**
+     * @return how many requests are queued or being decoded right now
+     */
+    synchronized int getBacklog() {
+        return queue.size() + inFlight.size();
+    }
+
+    void submit(Request request) {
+        synchronized (this) {
+            if (request.batch != batch)
+                return;
+            pending++;
+        }
+        queue.add(request);
+    }
+
+    /**
+     * No more requests will be submitted for the batch
+     */
+    void endBatch(int batchId) {
+        synchronized (this) {
+            if (batchId != batch)
+                return;
+            batchSubmitted = true;
+            if (pending > 0)
+                return;
+        }
+        client.onBatchDone(batchId, 0, 0, System.currentTimeMillis() - batchStart);
+    }
+
+    private void finish(Request request, boolean wasDecoded) {
+        int doneDecoded;
+        int doneDropped;
+        long millis;
+        synchronized (this) {
+            if (request.batch != batch)
+                return;
+            pending--;
+            if (wasDecoded)
+                decoded++;
+            else
+                dropped++;
+            if (pending > 0 || !batchSubmitted)
+                return;
+            doneDecoded = decoded;
+            doneDropped = dropped;
+            millis = System.currentTimeMillis() - batchStart;
+        }
+        client.onBatchDone(request.batch, doneDecoded, doneDropped, millis);
+    }
+
+    private class Worker extends Thread {
+        volatile boolean running = true;
+        /**
+         * The request being decoded
+         */
+        Request current;
+
+        @Override
+        public void run() {
+            while (running) {
+                Request request;
+                try {
+                    request = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                Long key = TileCache.key(request.level, request.col, request.row);
+                boolean wanted = client.isWanted(request);
+                if (wanted) {
+                    synchronized (DecodeEngine.this) {
+                        wanted = !inFlight.containsKey(key);
+                        if (wanted)
+                            inFlight.put(key, request);
+                    }
+                }
+                boolean wasDecoded = false;
+                if (wanted) {
+                    current = request;
+                    long start = platform.uptimeMillis();
+                    try {
+                        Pixels pixels = client.decode(request);
+                        if (pixels != null) {
+                            client.onDecoded(request, pixels);
+                            wasDecoded = true;
+                        }
+                    } catch (OutOfMemoryError e) {
+                        platform.debug(TAG, "decode thread out of memory");
+                        client.onOutOfMemory(request, e);
+                    } finally {
+                        current = null;
+                        synchronized (DecodeEngine.this) {
+                            inFlight.remove(key);
+                            if (request.cancelled) {
+                                cancelled++;
+                                wastedMillis += platform.uptimeMillis() - start;
+                            }
+                        }
+                    }
+                }
+                finish(request, wasDecoded);
+            }
+        }
+    }
+}
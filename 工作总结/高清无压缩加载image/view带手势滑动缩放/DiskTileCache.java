@@ -0,0 +1,267 @@
+package com.bollin1206.superbigimage.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 磁盘缓存
+ * Keeps decoded pixels on disk so that reopening an image, or panning back to a region
+ * seen in an earlier session, copies pixels instead of decoding the source again. Each
+ * image gets a directory named after the hash of its content, each region a file of raw
+ * RGB_565 pixels behind an 8 byte width/height header. Files are read and written through
+ * memory maps. The least recently used files are deleted once the cache grows over its
+ * size cap; the file modification time carries the order over to the next session.
+ */
+public class DiskTileCache {
+    private static final String TAG = DiskTileCache.class.getSimpleName();
+    private static final int HEADER_BYTES = 8;
+    private static final String SUFFIX = ".565";
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<File, Long> files = new LinkedHashMap<File, Long>(256, 0.75f, true);
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param directory where to keep the files, e.g. under {@link android.content.Context#getCacheDir()}
+     * @param maxBytes  how big the cache may grow on disk
+     */
+    public DiskTileCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        scan();
+    }
+
+    /**
+     * The key of an image, the SHA-1 of its encoded bytes
+     */
+    public static String keyOf(byte[] data, int offset, int length) {
+        MessageDigest digest = sha1();
+        digest.update(data, offset, length);
+        return hex(digest.digest());
+    }
+
+    /**
+     * The key of an image, the SHA-1 of the encoded bytes between the buffer's
+     * position and limit. A mapped buffer is hashed a chunk at a time, it is never
+     * copied to the heap as a whole.
+     */
+    public static String keyOf(ByteBuffer data) {
+        MessageDigest digest = sha1();
+        digest.update(data.duplicate());
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash)
+            key.append(String.format("%02x", b & 0xff));
+        return key.toString();
+    }
+
+    /**
+     * Pick up the files of earlier sessions, oldest first
+     */
+    private synchronized void scan() {
+        File[] imageDirs = directory.listFiles();
+        if (imageDirs == null)
+            return;
+        int count = 0;
+        File[][] perImage = new File[imageDirs.length][];
+        for (int i = 0; i < imageDirs.length; i++) {
+            perImage[i] = imageDirs[i].listFiles();
+            if (perImage[i] != null)
+                count += perImage[i].length;
+        }
+        File[] all = new File[count];
+        int n = 0;
+        for (File[] imageFiles : perImage)
+            if (imageFiles != null)
+                for (File file : imageFiles)
+                    all[n++] = file;
+        Arrays.sort(all, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ma = a.lastModified();
+                long mb = b.lastModified();
+                return ma < mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+        for (File file : all) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                // a write that didn't finish
+                file.delete();
+                continue;
+            }
+            long length = file.length();
+            files.put(file, length);
+            totalBytes += length;
+        }
+        trimToSize();
+    }
+
+    private File fileFor(String imageKey, String name) {
+        return new File(new File(directory, imageKey), name + SUFFIX);
+    }
+
+    /**
+     * Read the pixels stored under the name.
+     *
+     * @param reuse a bitmap to copy the pixels into if it has the stored size, or null
+     * @return the bitmap holding the pixels, which is reuse or a new one, or null if
+     * nothing is stored under the name
+     */
+    public Bitmap get(String imageKey, String name, Bitmap reuse) {
+        File file = fileFor(imageKey, name);
+        synchronized (this) {
+            if (files.get(file) == null) {
+                misses++;
+                return null;
+            }
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            long length = raf.length();
+            if (length < HEADER_BYTES)
+                throw new IOException("truncated header");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            int width = buffer.getInt(0);
+            int height = buffer.getInt(4);
+            // A corrupt file would make the bitmap calls throw on the decode thread
+            if (width <= 0 || height <= 0 || length != HEADER_BYTES + (long) width * height * 2)
+                throw new IOException(String.format("%dx%d doesn't fit %d bytes", width, height, length));
+            Bitmap bitmap = reuse;
+            if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height
+                    || bitmap.getConfig() != Config.RGB_565)
+                bitmap = Bitmap.createBitmap(width, height, Config.RGB_565);
+            buffer.position(HEADER_BYTES);
+            bitmap.copyPixelsFromBuffer(buffer);
+            file.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                hits++;
+            }
+            return bitmap;
+        } catch (IOException e) {
+            Log.w(TAG, "can't read " + file, e);
+            remove(file);
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Store the pixels of an RGB_565 bitmap under the name. Other configs are ignored.
+     */
+    public void put(String imageKey, String name, Bitmap bitmap) {
+        if (bitmap.getConfig() != Config.RGB_565)
+            return;
+        File file = fileFor(imageKey, name);
+        File tmp = new File(file.getPath() + ".tmp");
+        long length = HEADER_BYTES + (long) bitmap.getRowBytes() * bitmap.getHeight();
+        RandomAccessFile raf = null;
+        try {
+            file.getParentFile().mkdirs();
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(length);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            // Not forced to disk: the rename keeps readers from a partial file, and a file
+            // a crash loses only costs a decode
+            bitmap.copyPixelsToBuffer(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "can't write " + file, e);
+            tmp.delete();
+            return;
+        } finally {
+            close(raf);
+        }
+        // Readers only ever see complete files
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            Long old = files.put(file, length);
+            totalBytes += length - (old == null ? 0 : old);
+            trimToSize();
+        }
+    }
+
+    private synchronized void remove(File file) {
+        Long length = files.remove(file);
+        if (length != null)
+            totalBytes -= length;
+        file.delete();
+    }
+
+    private synchronized void trimToSize() {
+        Iterator<Map.Entry<File, Long>> it = files.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<File, Long> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue();
+            File file = eldest.getKey();
+            file.delete();
+            File imageDir = file.getParentFile();
+            String[] left = imageDir.list();
+            if (left != null && left.length == 0)
+                imageDir.delete();
+        }
+    }
+
+    private static void close(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
@@ -0,0 +1,171 @@
+package com.bollin1206.superbigimage.view;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 手势回放
+ * Plays a {@link GestureTrace} into a started scene and draws frames at a steady rate
+ * meanwhile, the way the render thread of ImageSurfaceView would. Every frame's render
+ * time, whether the sample had to show and the decode backlog are kept, so that runs of
+ * the same trace can be compared between builds. The scene should be of the image the
+ * trace was recorded on, or at least of the same size.
+ * <p>
+ * {@link #replay()} blocks until the trace has played and the scene has settled, so call
+ * it off the UI thread. On Android the frames go nowhere; the scene must not be drawn by
+ * a view at the same time.
+ */
+public class GestureReplayer {
+    /**
+     * What one frame of the replay cost
+     */
+    public static final class Frame {
+        /**
+         * Milliseconds into the trace the frame was drawn at
+         */
+        public final long traceMillis;
+        public final long renderMicros;
+        public final boolean sampleFallback;
+        public final int decodeBacklog;
+
+        Frame(long traceMillis, long renderMicros, boolean sampleFallback, int decodeBacklog) {
+            this.traceMillis = traceMillis;
+            this.renderMicros = renderMicros;
+            this.sampleFallback = sampleFallback;
+            this.decodeBacklog = decodeBacklog;
+        }
+    }
+
+    private final PortableScene scene;
+    private final GestureTrace trace;
+    private float speed = 1f;
+    private int framesPerSecond = 60;
+    private long settleMillis = 1000;
+
+    public GestureReplayer(PortableScene scene, GestureTrace trace) {
+        this.scene = scene;
+        this.trace = trace;
+    }
+
+    /**
+     * How much faster than recorded to play, 1 for the original speed. 0 or less
+     * plays as fast as frames can be drawn, without waiting between them.
+     */
+    public GestureReplayer setSpeed(float speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * How many frames to draw per second of the trace, 60 by default
+     */
+    public GestureReplayer setFramesPerSecond(int framesPerSecond) {
+        this.framesPerSecond = Math.max(1, framesPerSecond);
+        return this;
+    }
+
+    /**
+     * How long, in trace time, to keep drawing after the last event while tiles are
+     * still being decoded, one second by default
+     */
+    public GestureReplayer setSettleMillis(long settleMillis) {
+        this.settleMillis = Math.max(0, settleMillis);
+        return this;
+    }
+
+    /**
+     * Play the trace, drawing a frame every 1/fps of trace time
+     *
+     * @return the frames drawn, in order
+     * @throws InterruptedException if the thread was interrupted while waiting for a frame
+     */
+    public List<Frame> replay() throws InterruptedException {
+        ArrayList<Frame> frames = new ArrayList<Frame>();
+        long duration = trace.getDurationMillis();
+        int next = 0;
+        long wallStart = System.nanoTime();
+        for (long frame = 0; ; frame++) {
+            long traceMillis = frame * 1000 / framesPerSecond;
+            if (speed > 0) {
+                long wait = wallStart + (long) (traceMillis * 1000000L / speed) - System.nanoTime();
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+            for (; next < trace.size() && trace.get(next).time <= traceMillis; next++)
+                apply(trace.get(next));
+            long start = System.nanoTime();
+            scene.drawFrame();
+            long renderMicros = (System.nanoTime() - start) / 1000;
+            int backlog = scene.getDecodeBacklog();
+            frames.add(new Frame(traceMillis, renderMicros, scene.isLastFrameSampleFallback(), backlog));
+            if (next >= trace.size() && (backlog == 0 || traceMillis >= duration + settleMillis))
+                return frames;
+        }
+    }
+
+    private void apply(GestureTrace.Event event) {
+        switch (event.type) {
+            case SIZE:
+                scene.getViewport().setViewportSize((int) event.a, (int) event.b);
+                break;
+            case ORIGIN:
+                scene.getViewport().setOrigin((int) event.a, (int) event.b);
+                break;
+            case ZOOM:
+                scene.getViewport().zoom(event.a, event.b, event.c);
+                break;
+            case FLING:
+                scene.startFling((int) event.a, (int) event.b);
+                break;
+            case FLING_END:
+                scene.endFling();
+                break;
+        }
+    }
+
+    /**
+     * Write the frames as CSV, one line per frame after a header
+     */
+    public static void writeCsv(List<Frame> frames, Writer out) throws IOException {
+        out.write("frame,traceMillis,renderMicros,sampleFallback,decodeBacklog\n");
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            out.write(String.format(Locale.US, "%d,%d,%d,%d,%d%n", i, frame.traceMillis, frame.renderMicros,
+                    frame.sampleFallback ? 1 : 0, frame.decodeBacklog));
+        }
+        out.flush();
+    }
+
+    /**
+     * One line to compare runs by: frames, render time percentiles, sample fallbacks
+     * and the largest backlog
+     */
+    public static String summarize(List<Frame> frames) {
+        if (frames.isEmpty())
+            return "no frames";
+        long[] render = new long[frames.size()];
+        int fallbacks = 0;
+        int maxBacklog = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            render[i] = frame.renderMicros;
+            if (frame.sampleFallback)
+                fallbacks++;
+            maxBacklog = Math.max(maxBacklog, frame.decodeBacklog);
+        }
+        Arrays.sort(render);
+        return String.format(Locale.US,
+                "frames %d, render us p50 %d p95 %d p99 %d max %d, sample fallback %d (%.1f%%), max backlog %d",
+                render.length, percentile(render, 50), percentile(render, 95), percentile(render, 99),
+                render[render.length - 1], fallbacks, 100f * fallbacks / render.length, maxBacklog);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,176 @@
+package com.bollin1206.superbigimage.view;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * 手势轨迹
+ * What the gestures of a session did to a {@link PortableScene}: every move of the
+ * viewport, every step of a pinch and every fling, timestamped. A trace is recorded
+ * with {@link PortableScene#setGestureTrace(GestureTrace)}, while ImageSurfaceView's
+ * touch, scale and fling handling run as usual, and a {@link GestureReplayer} plays it
+ * into another scene later, on the device or on a desktop JVM.
+ * <p>
+ * The calls are recorded as they were made, before the viewport clamped them, so that
+ * replaying them into a scene of the same image goes through the same states. A trace
+ * is saved as text, one event per line:
+ * <pre>
+ * millis size width height
+ * millis origin x y
+ * millis zoom factor focusX focusY
+ * millis fling finalX finalY
+ * millis flingEnd
+ * </pre>
+ */
+public final class GestureTrace {
+    public enum Type {
+        /**
+         * {@link PortableScene.Viewport#setViewportSize(int, int)}
+         */
+        SIZE("size"),
+        /**
+         * {@link PortableScene.Viewport#setOrigin(int, int)}, for a drag or a step of a fling
+         */
+        ORIGIN("origin"),
+        /**
+         * {@link PortableScene.Viewport#zoom(float, float, float)}, for a step of a pinch
+         */
+        ZOOM("zoom"),
+        /**
+         * {@link PortableScene#startFling(int, int)}
+         */
+        FLING("fling"),
+        /**
+         * {@link PortableScene#endFling()}
+         */
+        FLING_END("flingEnd");
+
+        final String token;
+
+        Type(String token) {
+            this.token = token;
+        }
+    }
+
+    public static final class Event {
+        /**
+         * Milliseconds since the trace started
+         */
+        public final long time;
+        public final Type type;
+        public final float a;
+        public final float b;
+        public final float c;
+
+        Event(long time, Type type, float a, float b, float c) {
+            this.time = time;
+            this.type = type;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+    }
+
+    private final ArrayList<Event> events = new ArrayList<Event>();
+    /**
+     * When recording started, in {@link Platform#uptimeMillis()}, or -1 for a trace read back
+     */
+    private final long start;
+    private final Platform platform;
+
+    /**
+     * An empty trace to record into, timed with the platform's clock from now on
+     */
+    public GestureTrace(Platform platform) {
+        this.platform = platform;
+        this.start = platform.uptimeMillis();
+    }
+
+    private GestureTrace() {
+        this.platform = null;
+        this.start = -1;
+    }
+
+    synchronized void record(Type type, float a, float b, float c) {
+        if (platform == null)
+            throw new IllegalStateException("a trace read back can't be recorded into");
+        events.add(new Event(platform.uptimeMillis() - start, type, a, b, c));
+    }
+
+    public synchronized int size() {
+        return events.size();
+    }
+
+    public synchronized Event get(int index) {
+        return events.get(index);
+    }
+
+    /**
+     * @return the time of the last event, 0 for an empty trace
+     */
+    public synchronized long getDurationMillis() {
+        return events.isEmpty() ? 0 : events.get(events.size() - 1).time;
+    }
+
+    public synchronized void write(Writer out) throws IOException {
+        for (Event event : events) {
+            out.write(Long.toString(event.time));
+            out.write(' ');
+            out.write(event.type.token);
+            switch (event.type) {
+                case SIZE:
+                case ORIGIN:
+                case FLING:
+                    out.write(String.format(Locale.US, " %d %d", (int) event.a, (int) event.b));
+                    break;
+                case ZOOM:
+                    out.write(String.format(Locale.US, " %s %s %s", event.a, event.b, event.c));
+                    break;
+                default:
+                    break;
+            }
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a trace saved with {@link #write(Writer)}
+     *
+     * @throws IOException if a line isn't an event
+     */
+    public static GestureTrace read(Reader in) throws IOException {
+        GestureTrace trace = new GestureTrace();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\\s+");
+            try {
+                Type type = typeOf(fields[1]);
+                float[] args = new float[3];
+                for (int i = 2; i < fields.length && i < 5; i++)
+                    args[i - 2] = Float.parseFloat(fields[i]);
+                trace.events.add(new Event(Long.parseLong(fields[0]), type, args[0], args[1], args[2]));
+            } catch (RuntimeException e) {
+                throw new IOException("bad gesture trace event at line " + number + ": " + line);
+            }
+        }
+        return trace;
+    }
+
+    private static Type typeOf(String token) {
+        for (Type type : Type.values())
+            if (type.token.equals(token))
+                return type;
+        throw new IllegalArgumentException(token);
+    }
+}
@@ -1,11 +1,15 @@
 package com.bollin1206.superbigimage.view;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Canvas;
 import android.graphics.Point;
-import android.graphics.PointF;
+import android.os.Debug;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Display;
 import android.view.GestureDetector;
 import android.view.GestureDetector.OnGestureListener;
 import android.view.MotionEvent;
@@ -14,24 +18,71 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.widget.Scroller;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Future;
 
 public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callback, OnGestureListener  {
     private final static String TAG = ImageSurfaceView.class.getSimpleName();
 
-    private InputStreamScene scene;
+    private volatile Scene scene;
+    /**
+     * Between surfaceCreated and surfaceDestroyed, on the UI thread
+     */
+    private boolean surfaceAlive = false;
+    private int surfaceWidth = 0;
+    private int surfaceHeight = 0;
     private final Touch touch;
+    /**
+     * Where the viewport is, copied for the UI thread's gestures and getters
+     */
+    private final Scene.ViewportState viewportState = new Scene.ViewportState();
     private GestureDetector gestureDectector;
     private ScaleGestureDetector scaleGestureDetector;
     private long lastScaleTime = 0;
     private long SCALE_MOVE_GUARD = 500; // milliseconds after scale to ignore move events
 
-    private DrawThread drawThread;
+    /**
+     * Draws the scene on vsync, whenever it changed
+     */
+    private final RenderScheduler renderScheduler = new RenderScheduler("drawThread", new RenderScheduler.Renderer() {
+        @Override
+        public void render() {
+            drawScene();
+        }
+    });
+    private final Scene.OnChangeListener sceneChangeListener = new Scene.OnChangeListener() {
+        @Override
+        public void onSceneChanged() {
+            renderScheduler.requestRender();
+        }
+    };
+
+    /**
+     * Passes the system's memory pressure on to the scene
+     */
+    private final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (scene != null)
+                scene.onTrimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
 
     //region getters and setters
     public void getViewport(Point p){
-        scene.getViewport().getOrigin(p);
+        scene.getViewport().getState(viewportState);
+        p.set(viewportState.left, viewportState.top);
     }
     
     public void setViewport(Point viewport){
@@ -39,24 +90,227 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     }
 
     public void setViewportCenter() {
-        Point viewportSize = new Point();
+        scene.getViewport().getState(viewportState);
         Point sceneSize = scene.getSceneSize();
-        scene.getViewport().getViewportSize(viewportSize);
 
-        int x = (sceneSize.x - viewportSize.x) / 2;
-        int y = (sceneSize.y - viewportSize.y) / 2;
+        int x = (sceneSize.x - viewportState.width()) / 2;
+        int y = (sceneSize.y - viewportState.height()) / 2;
         scene.getViewport().setOrigin(x, y);
     }
 
     public void setInputStream(InputStream inputStream) throws IOException {
-        scene = new InputStreamScene(inputStream);
+        setOwnScene(new InputStreamScene(inputStream));
+    }
+
+    /**
+     * @param diskCache keeps the decoded pixels for the next time this image is opened
+     */
+    public void setInputStream(InputStream inputStream, DiskTileCache diskCache) throws IOException {
+        setOwnScene(new InputStreamScene(inputStream, Runtime.getRuntime().availableProcessors(), diskCache));
+    }
+
+    /**
+     * Show the image file at the path. It is decoded in place, never read into memory.
+     *
+     * @param diskCache keeps the decoded pixels for the next time this image is opened, or null
+     */
+    public void setFile(String path, DiskTileCache diskCache) throws IOException {
+        setOwnScene(new InputStreamScene(path, Runtime.getRuntime().availableProcessors(), diskCache));
+    }
+
+    /**
+     * Show the image file behind the descriptor, which must stay open while it is shown.
+     * It stays the caller's to close, once another image replaced it.
+     *
+     * @param diskCache keeps the decoded pixels for the next time this image is opened, or null
+     */
+    public void setFileDescriptor(FileDescriptor fd, DiskTileCache diskCache) throws IOException {
+        setOwnScene(new InputStreamScene(fd, Runtime.getRuntime().availableProcessors(), diskCache));
+    }
+
+    /**
+     * Open the image file at the path off the UI thread and show it once its header is
+     * read, see {@link InputStreamScene#openAsync(String, int, DiskTileCache, InputStreamScene.OnOpenListener)}
+     *
+     * @param diskCache keeps the decoded pixels for the next time this image is opened, or null
+     * @param listener  told on the main thread after the scene was set, or null
+     * @return the scene once it is open, cancel it to not show it after all
+     */
+    public Future<InputStreamScene> openFile(String path, DiskTileCache diskCache,
+                                             InputStreamScene.OnOpenListener listener) {
+        return InputStreamScene.openAsync(path, Runtime.getRuntime().availableProcessors(), diskCache,
+                showWhenOpened(listener));
+    }
+
+    /**
+     * Read the stream and show the image off the UI thread, unlike
+     * {@link #setInputStream(InputStream, DiskTileCache)}, see {@link #openFile}
+     */
+    public Future<InputStreamScene> openInputStream(InputStream inputStream, DiskTileCache diskCache,
+                                                    InputStreamScene.OnOpenListener listener) {
+        return InputStreamScene.openAsync(inputStream, Runtime.getRuntime().availableProcessors(), diskCache,
+                showWhenOpened(listener));
+    }
+
+    private InputStreamScene.OnOpenListener showWhenOpened(final InputStreamScene.OnOpenListener listener) {
+        return new InputStreamScene.OnOpenListener() {
+            @Override
+            public void onOpened(InputStreamScene scene) {
+                setOwnScene(scene);
+                if (listener != null)
+                    listener.onOpened(scene);
+            }
+
+            @Override
+            public void onOpenFailed(IOException e) {
+                Log.e(TAG, "can't open the image", e);
+                if (listener != null)
+                    listener.onOpenFailed(e);
+            }
+        };
+    }
+
+    /**
+     * Show an image cut into a {@link TilePyramid} file beforehand, see tools/TilePyramidBuilder
+     */
+    public void setTilePyramid(String path) throws IOException {
+        setOwnScene(new TilePyramidScene(path, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Whether the view opened the scene itself, and so closes it once it is replaced
+     */
+    private boolean ownsScene = false;
+
+    /**
+     * Show a scene the view opened, see {@link #ownsScene}
+     */
+    private void setOwnScene(Scene scene) {
+        setScene(scene);
+        ownsScene = true;
+    }
+
+    /**
+     * Show any scene, e.g. a {@link CompositeScene} of many pages. It stays the
+     * caller's to close, once it is replaced.
+     */
+    public void setScene(Scene scene) {
+        if (this.scene != null) {
+            if (surfaceAlive) {
+                touch.stop();
+                this.scene.stop();
+            }
+            this.scene.setOnChangeListener(null);
+            if (gestureTrace != null)
+                this.scene.setGestureTrace(null);
+            if (cacheManager != null)
+                cacheManager.unregister(this.scene);
+            if (ownsScene)
+                this.scene.close();
+        }
+        this.scene = scene;
+        ownsScene = false;
+        scene.setOnChangeListener(sceneChangeListener);
+        if (gestureTrace != null)
+            scene.setGestureTrace(gestureTrace);
+        if (cacheManager != null)
+            cacheManager.register(scene, cacheVisibility);
+        if (surfaceAlive) {
+            // Set after the surface came up, e.g. by openFile()
+            if (surfaceWidth > 0 && surfaceHeight > 0)
+                scene.getViewport().setViewportSize(surfaceWidth, surfaceHeight);
+            scene.start();
+        }
+        renderScheduler.requestRender();
     }
 
+    /**
+     * The trace being recorded, or null. Kept here so that recording can start before
+     * the scene is set, e.g. while it is still being opened; it goes to whatever scene
+     * {@link #setScene} sets.
+     */
+    private GestureTrace gestureTrace;
+
+    /**
+     * Record what the gestures do to the scene from now on, e.g. a pinch followed by a
+     * fling, to replay it later with a {@link GestureReplayer}. Without a scene yet,
+     * recording starts with the scene {@link #setScene} sets.
+     *
+     * @return the trace being recorded, save it with {@link GestureTrace#write}
+     * once {@link #stopGestureRecording()} returned it
+     */
+    public GestureTrace startGestureRecording() {
+        GestureTrace trace = new GestureTrace(AndroidPlatform.INSTANCE);
+        gestureTrace = trace;
+        if (scene != null)
+            scene.setGestureTrace(trace);
+        return trace;
+    }
+
+    /**
+     * @return the trace recorded since {@link #startGestureRecording()}, or null if
+     * nothing is being recorded
+     */
+    public GestureTrace stopGestureRecording() {
+        GestureTrace trace = gestureTrace;
+        gestureTrace = null;
+        if (trace != null && scene != null)
+            scene.setGestureTrace(null);
+        return trace;
+    }
+
+    private SceneCacheManager cacheManager;
+    private SceneCacheManager.Visibility cacheVisibility = SceneCacheManager.Visibility.FOREGROUND;
+
+    /**
+     * Share one memory budget with the other views of the manager, e.g. the pages of a
+     * ViewPager, see {@link SceneCacheManager#getInstance()}. Null for a budget of its own.
+     */
+    public void setSceneCacheManager(SceneCacheManager manager) {
+        if (cacheManager != null && scene != null)
+            cacheManager.unregister(scene);
+        cacheManager = manager;
+        if (cacheManager != null && scene != null)
+            cacheManager.register(scene, cacheVisibility);
+    }
+
+    /**
+     * Tell the {@link SceneCacheManager} how soon this view will be seen, e.g. from
+     * ViewPager.OnPageChangeListener#onPageSelected
+     */
+    public void setCacheVisibility(SceneCacheManager.Visibility visibility) {
+        cacheVisibility = visibility;
+        if (cacheManager != null && scene != null)
+            cacheManager.setVisibility(scene, visibility);
+    }
+
+    /**
+     * @return how many frames were drawn
+     */
+    public long getRenderedFrames() {
+        return renderScheduler.getRenderedFrames();
+    }
+
+    /**
+     * @return how many vsyncs went by with nothing new to draw, and so weren't drawn
+     */
+    public long getSkippedFrames() {
+        return renderScheduler.getSkippedFrames();
+    }
+
+    /**
+     * @return the CPU time the draw thread spent on the last fling, animating and drawing it
+     */
+    public long getLastFlingCpuMillis() {
+        return touch.lastFlingCpuMillis;
+    }
     //endregion
 
     //region extends SurfaceView
     @Override
     public boolean onTouchEvent(MotionEvent me) {
+        if (scene == null)
+            return super.onTouchEvent(me);
         boolean consumed = gestureDectector.onTouchEvent(me);
         if (consumed)
             return true;
@@ -72,6 +326,18 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
         }
         return super.onTouchEvent(me);
     }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getContext().registerComponentCallbacks(trimCallbacks);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        getContext().unregisterComponentCallbacks(trimCallbacks);
+        super.onDetachedFromWindow();
+    }
     //endregion
 
     //region SurfaceHolder.Callback constructors
@@ -102,16 +368,15 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
 
     //region class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener
     private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
-        private PointF screenFocus = new PointF();
         @Override
         public boolean onScale(ScaleGestureDetector detector) {
             float scaleFactor = detector.getScaleFactor();
             if (scaleFactor!=0f && scaleFactor!=1.0f){
                 scaleFactor = 1/scaleFactor;
-                screenFocus.set(detector.getFocusX(),detector.getFocusY());
                 scene.getViewport().zoom(
                         scaleFactor,
-                        screenFocus);
+                        detector.getFocusX(),
+                        detector.getFocusY());
                 invalidate();
             }
             lastScaleTime = System.currentTimeMillis();
@@ -125,34 +390,32 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     //region implements SurfaceHolder.Callback
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        scene.getViewport().setViewportSize(width, height);
+        surfaceWidth = width;
+        surfaceHeight = height;
+        if (scene != null)
+            scene.getViewport().setViewportSize(width, height);
         Log.d(TAG,String.format("onSizeChanged(w=%d,h=%d)",width,height));
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
-        drawThread = new DrawThread(holder);
-        drawThread.setName("drawThread");
-        drawThread.setRunning(true);
-        drawThread.start();
-        scene.start();
-        touch.start();
+        Display display = getDisplay();
+        if (display != null)
+            renderScheduler.setRefreshRate(display.getRefreshRate());
+        renderScheduler.start();
+        surfaceAlive = true;
+        if (scene != null)
+            scene.start();
     }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        touch.stop();
-        scene.stop();
-        drawThread.setRunning(false);
-        boolean retry = true;
-        while (retry) {
-            try {
-                drawThread.join();
-                retry = false;
-            } catch (InterruptedException e) {
-                // we will try it again and again...
-            }
+        surfaceAlive = false;
+        if (scene != null) {
+            touch.stop();
+            scene.stop();
         }
+        renderScheduler.stop();
     }
     //endregion
 
@@ -188,48 +451,36 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
 
     //endregion
 
-    //region class DrawThread
-
-    class DrawThread extends Thread {
-        private SurfaceHolder surfaceHolder;
-
-        private boolean running = false;
-        public void setRunning(boolean value){ running = value; }
-        
-        public DrawThread(SurfaceHolder surfaceHolder){
-            this.surfaceHolder = surfaceHolder;
-        }
-        
-        @Override
-        public void run() {
-            Canvas c;
-            while (running) {
-                try {
-                    // Don't hog the entire CPU
-                    Thread.sleep(5);
-                } catch (InterruptedException e) {}
-                c = null;
-                try {
-                    c = surfaceHolder.lockCanvas();
-                    if (c!=null){
-                        synchronized (surfaceHolder) {
-                            scene.draw(c);// draw it
-                        }
-                    }
-                } finally {
-                    if (c != null) {
-                        surfaceHolder.unlockCanvasAndPost(c);
-                    }
+    //region drawScene()
+
+    /**
+     * Draw the scene onto the surface. Called on the render thread only.
+     */
+    private void drawScene() {
+        SurfaceHolder surfaceHolder = getHolder();
+        Canvas c = null;
+        try {
+            Scene scene = this.scene;
+            if (scene == null)
+                return;
+            c = surfaceHolder.lockCanvas();
+            if (c != null) {
+                synchronized (surfaceHolder) {
+                    scene.draw(c);// draw it
                 }
-            }        
+            }
+        } finally {
+            if (c != null) {
+                surfaceHolder.unlockCanvasAndPost(c);
+            }
         }
     }
     //endregion
 
     //region class Touch
 
-    enum TouchState {UNTOUCHED,IN_TOUCH,START_FLING,IN_FLING};
-    class Touch {
+    enum TouchState {UNTOUCHED,IN_TOUCH,IN_FLING};
+    class Touch implements RenderScheduler.Animator {
         TouchState state = TouchState.UNTOUCHED;
         /** Where on the view did we initially touch */
         final Point viewDown = new Point(0,0);
@@ -237,77 +488,69 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
         final Point viewportOriginAtDown = new Point(0,0);
         
         final Scroller scroller;
-        
-        TouchThread touchThread;
+
+        /** Render thread CPU time when the fling started, and what the last fling took */
+        long flingCpuStart = -1;
+        volatile long lastFlingCpuMillis = 0;
         
         Touch(Context context){
             scroller = new Scroller(context);
         }
         
-        void start(){
-            touchThread = new TouchThread(this);
-            touchThread.setName("touchThread");
-            touchThread.start();
-        }
-        
         void stop(){
-            touchThread.running = false;
-            touchThread.interrupt();
-
-            boolean retry = true;
-            while (retry) {
-                try {
-                    touchThread.join();
-                    retry = false;
-                } catch (InterruptedException e) {
-                    // we will try it again and again...
+            synchronized(this){
+                if (state==TouchState.IN_FLING){
+                    scroller.forceFinished(true);
+                    scene.endFling();
+                    state = TouchState.UNTOUCHED;
                 }
             }
-            touchThread = null;
         }
         
-        Point fling_viewOrigin = new Point();
-        Point fling_viewSize = new Point();
         Point fling_sceneSize = new Point();
         boolean fling( MotionEvent e1, MotionEvent e2, float velocityX, float velocityY){
-            scene.getViewport().getOrigin(fling_viewOrigin);
-            scene.getViewport().getViewportSize(fling_viewSize);
+            Scene.ViewportState fling_viewport = scene.getViewport().getState(viewportState);
             scene.getSceneSize(fling_sceneSize);
 
             synchronized(this){
-                state = TouchState.START_FLING;
-                scene.setSuspend(true);
+                state = TouchState.IN_FLING;
                 scroller.fling(
-                    fling_viewOrigin.x,
-                    fling_viewOrigin.y,
+                    fling_viewport.left,
+                    fling_viewport.top,
                     (int)-velocityX,
                     (int)-velocityY,
                     0, 
-                    fling_sceneSize.x-fling_viewSize.x, 
+                    fling_sceneSize.x-fling_viewport.width(), 
                     0,
-                    fling_sceneSize.y-fling_viewSize.y);
-                touchThread.interrupt();
+                    fling_sceneSize.y-fling_viewport.height());
+                // Let the cache prefetch around where the fling will stop
+                scene.startFling(scroller.getFinalX(), scroller.getFinalY());
+                flingCpuStart = -1;
             }
+            renderScheduler.startAnimation(this);
 //            Log.d(TAG,String.format("scroller.fling(%d,%d,%d,%d,%d,%d,%d,%d)",
-//                    fling_viewOrigin.x,
-//                    fling_viewOrigin.y,
+//                    fling_viewport.left,
+//                    fling_viewport.top,
 //                    (int)-velocityX,
 //                    (int)-velocityY,
 //                    0, 
-//                    fling_sceneSize.x-fling_viewSize.x,
+//                    fling_sceneSize.x-fling_viewport.width(),
 //                    0,
-//                    fling_sceneSize.y-fling_viewSize.y));
+//                    fling_sceneSize.y-fling_viewport.height()));
             return true;
         }
         boolean down(MotionEvent event){
-            scene.setSuspend(false);    // If we were suspended because of a fling
             synchronized(this){
+                if (state==TouchState.IN_FLING){
+                    // Touching down stops the fling where it is
+                    scroller.forceFinished(true);
+                    scene.endFling();
+                }
                 state = TouchState.IN_TOUCH;
                 viewDown.x = (int) event.getX();
                 viewDown.y = (int) event.getY();
-                Point p = new Point();
-                scene.getViewport().getOrigin(p);
-                viewportOriginAtDown.set(p.x,p.y);
+                Scene.ViewportState viewportAtDown = scene.getViewport().getState(viewportState);
+                viewportOriginAtDown.set(viewportAtDown.left, viewportAtDown.top);
             }
             return true;
         }
@@ -340,42 +583,27 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
             return true;
         }
         
-        class TouchThread extends Thread {
-            final Touch touch;
-            boolean running = false;
-            void setRunning(boolean value){ running = value; }
-            
-            TouchThread(Touch touch){ this.touch = touch; }
-            @Override
-            public void run() {
-                running=true;
-                while(running){
-                    while(touch.state!=TouchState.START_FLING && touch.state!=TouchState.IN_FLING){
-                        try {
-                            Thread.sleep(Integer.MAX_VALUE);
-                        } catch (InterruptedException e) {}
-                        if (!running)
-                            return;
-                    }
-                    synchronized (touch) {
-                        if (touch.state==TouchState.START_FLING){
-                            touch.state = TouchState.IN_FLING;
-                        }
-                    }
-                    if (touch.state==TouchState.IN_FLING){
-                        scroller.computeScrollOffset();
-                        scene.getViewport().setOrigin(scroller.getCurrX(), scroller.getCurrY());
-                        if (scroller.isFinished()){
-                            scene.setSuspend(false);
-                            synchronized (touch) {
-                                touch.state = TouchState.UNTOUCHED;
-                                try{
-                                    Thread.sleep(5);
-                                } catch (InterruptedException e) {}
-                            }
-                        }
-                    }
-                }
+        /**
+         * One step of the fling per frame, on the render thread
+         */
+        @Override
+        public boolean onAnimationFrame(long frameTimeNanos) {
+            synchronized (this) {
+                if (state!=TouchState.IN_FLING)
+                    return false;
+                long cpu = SystemClock.currentThreadTimeMillis();
+                if (flingCpuStart < 0)
+                    flingCpuStart = cpu;
+                scroller.computeScrollOffset();
+                scene.getViewport().setOrigin(scroller.getCurrX(), scroller.getCurrY());
+                if (!scroller.isFinished())
+                    return true;
+                scene.endFling();
+                state = TouchState.UNTOUCHED;
+                lastFlingCpuMillis = cpu - flingCpuStart;
+                if (Debug.isDebuggerConnected())
+                    Log.d(TAG, String.format("fling took %dms of cpu", lastFlingCpuMillis));
+                return false;
             }
         }
     }
@@ -8,10 +8,27 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class InputStreamScene extends Scene {
     private static final String TAG = InputStreamScene.class.getSimpleName();
@@ -20,65 +37,781 @@ public class InputStreamScene extends Scene {
     private static final BitmapFactory.Options inputStreamSceneoptions = new BitmapFactory.Options();
 
     /**
-     * What is the downsample size for the sample image?  1=1/2, 2=1/4 3=1/8, etc
+     * The sample is the image scaled down by the smallest power of two that leaves at
+     * most this many pixels, however big the image is
+     */
+    private static final int SAMPLE_PIXELS = 2 * 1024 * 1024;
+    /**
+     * How many bands the sample is decoded in, when the image can be decoded a band
+     * at a time, see {@link #loadSample()}
      */
-    private static final int DOWN_SAMPLE_SHIFT = 3;
+    private static final int SAMPLE_BANDS = 8;
+    /**
+     * Tiles decoded with this sample size or more cover so much of the image that
+     * they are decoded in {@link #SPLIT_BANDS} bands, so a cancel doesn't wait long.
+     * Only for a JPEG with restart markers, see {@link #decodeRegion}.
+     */
+    private static final int SPLIT_SAMPLE_SIZE = 8;
+    private static final int SPLIT_BANDS = 4;
 
     /**
-     * How many bytes does one pixel use?
+     * Where the encoded image comes from, every decoder is opened from it
+     */
+    private final Source source;
+    /**
+     * Idle decoders. There is at most one decoder per decode thread, a
+     * BitmapRegionDecoder only decodes one region at a time. Only the first one is
+     * opened up front, for the image size and the sample. The others are opened when
+     * first needed, since with a warm disk cache there may be nothing to decode.
+     */
+    private final BlockingQueue<BitmapRegionDecoder> regionDecoders;
+    private final int maxDecoders;
+    private int openDecoders = 0;
+    private volatile Bitmap sampleBitmap;
+    /**
+     * What is the downsample size for the sample image?  1=1/2, 2=1/4 3=1/8, etc
+     */
+    private final int sampleShift;
+    /**
+     * While the sample is being decoded: how many of its rows are there yet, and a
+     * tiny picture of the whole image to show under the rest, or null
      */
-    private final int BYTES_PER_PIXEL = 4;
+    private volatile int sampleRows;
+    private volatile Bitmap previewBitmap;
+    private volatile boolean sampleLoading = false;
+    /**
+     * Held while the sample is loaded or trimmed, by the opener thread or the sample thread
+     */
+    private final Object sampleLock = new Object();
 
     /**
-     * What percent of total memory should we use for the cache? The bigger the cache,
-     * the longer it takes to read -- 1.2 secs for 25%, 600ms for 10%, 500ms for 5%.
-     * User experience seems to be best for smaller values.
+     * Decoded pixels of earlier sessions, or null. Keyed by imageKey.
      */
-    private int percent = 5; // Above 25 and we get OOMs
+    private final DiskTileCache diskCache;
+    private final String imageKey;
+    private final String sampleName;
 
-    private BitmapRegionDecoder regionDecoder;
-    private Bitmap sampleBitmap;
+    /**
+     * Where the rows of a JPEG with restart markers start, or null. With it a region
+     * is decoded from a band of rows cut out of {@link #encoded} rather than through
+     * every row above it.
+     */
+    private final JpegRestartIndex jpegIndex;
+    private final ByteBuffer encoded;
 
     static {
         inputStreamSceneoptions.inPreferredConfig = Bitmap.Config.RGB_565;
     }
 
+    /**
+     * Where the encoded image comes from
+     */
+    private interface Source {
+        BitmapRegionDecoder openDecoder() throws IOException;
+
+        /**
+         * The key of the content for the {@link DiskTileCache}
+         */
+        String key() throws IOException;
+
+        /**
+         * The whole encoded image, mapped rather than read where it can be
+         */
+        ByteBuffer data() throws IOException;
+
+        /**
+         * The file of the image, or null if it isn't known
+         */
+        File file();
+
+        /**
+         * Let go of whatever the source opened itself
+         */
+        void close();
+    }
+
+    /**
+     * Encoded bytes in memory. Each decoder gets its own copy from the platform.
+     */
+    private static class BytesSource implements Source {
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        BytesSource(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public BitmapRegionDecoder openDecoder() throws IOException {
+            return BitmapRegionDecoder.newInstance(data, offset, length, false);
+        }
+
+        @Override
+        public String key() {
+            return DiskTileCache.keyOf(data, offset, length);
+        }
+
+        @Override
+        public ByteBuffer data() {
+            return ByteBuffer.wrap(data, offset, length).slice();
+        }
+
+        @Override
+        public File file() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A file. The platform maps the file behind a descriptor instead of reading it
+     * into memory, so every decoder shares the same pages of the page cache.
+     */
+    private static class FileDescriptorSource implements Source {
+        final FileDescriptor fd;
+        /**
+         * Set if the scene opened the file and has to close it
+         */
+        final Closeable owner;
+        final File file;
+
+        FileDescriptorSource(FileDescriptor fd, Closeable owner, File file) {
+            this.fd = fd;
+            this.owner = owner;
+            this.file = file;
+        }
+
+        @Override
+        public BitmapRegionDecoder openDecoder() throws IOException {
+            return BitmapRegionDecoder.newInstance(fd, false);
+        }
+
+        @Override
+        public String key() throws IOException {
+            return DiskTileCache.keyOf(data());
+        }
+
+        @Override
+        public ByteBuffer data() throws IOException {
+            // Not closed, that would close the descriptor
+            FileChannel channel = new FileInputStream(fd).getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        @Override
+        public File file() {
+            return file;
+        }
+
+        @Override
+        public void close() {
+            if (owner != null) {
+                try {
+                    owner.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
     public InputStreamScene(InputStream inputStream) throws IOException {
-        BitmapFactory.Options tmpOptions = new BitmapFactory.Options();
+        this(inputStream, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param decodeThreads How many regions to decode at the same time. Each one gets
+     *                      its own decoder over the same encoded bytes.
+     */
+    public InputStreamScene(InputStream inputStream, int decodeThreads) throws IOException {
+        this(inputStream, decodeThreads, null);
+    }
+
+    /**
+     * The stream is read once into memory, it doesn't need to be rewindable. Prefer
+     * one of the file constructors for big images.
+     *
+     * @param decodeThreads How many regions to decode at the same time. Each one gets
+     *                      its own decoder over the same encoded bytes.
+     * @param diskCache     Where to keep decoded pixels between sessions, or null
+     */
+    public InputStreamScene(InputStream inputStream, int decodeThreads, DiskTileCache diskCache) throws IOException {
+        this(bytesSource(readFully(inputStream)), decodeThreads, diskCache);
+    }
+
+    /**
+     * Open the image file at the path. The scene keeps it open until {@link #close()}.
+     *
+     * @param decodeThreads How many regions to decode at the same time
+     * @param diskCache     Where to keep decoded pixels between sessions, or null
+     */
+    public InputStreamScene(String path, int decodeThreads, DiskTileCache diskCache) throws IOException {
+        this(fileSource(new File(path)), decodeThreads, diskCache);
+    }
 
-        this.regionDecoder = BitmapRegionDecoder.newInstance(inputStream, false);
+    /**
+     * Decode the image file behind the descriptor. The caller keeps the descriptor
+     * open for as long as the scene is used.
+     *
+     * @param decodeThreads How many regions to decode at the same time
+     * @param diskCache     Where to keep decoded pixels between sessions, or null
+     */
+    public InputStreamScene(FileDescriptor fd, int decodeThreads, DiskTileCache diskCache) throws IOException {
+        this(new FileDescriptorSource(fd, null, null), decodeThreads, diskCache);
+    }
+
+    /**
+     * Decode the encoded image between the buffer's position and limit. A heap
+     * buffer is used in place. The platform decoders only read from arrays, streams
+     * or descriptors, so a direct or mapped buffer is copied once. Pass the file's
+     * path or descriptor instead to avoid that.
+     *
+     * @param decodeThreads How many regions to decode at the same time
+     * @param diskCache     Where to keep decoded pixels between sessions, or null
+     */
+    public InputStreamScene(ByteBuffer buffer, int decodeThreads, DiskTileCache diskCache) throws IOException {
+        this(bufferSource(buffer), decodeThreads, diskCache);
+    }
+
+    private InputStreamScene(Source source, int decodeThreads, DiskTileCache diskCache) throws IOException {
+        this(source, decodeThreads, diskCache, false);
+        loadSample();
+    }
+
+    /**
+     * @param deferSample true to leave the sample to {@link #loadSample()}, so the
+     *                    scene can be shown before it is there
+     */
+    private InputStreamScene(Source source, int decodeThreads, DiskTileCache diskCache, boolean deferSample)
+            throws IOException {
+        super(decodeThreads);
+        getMetrics().onOpenStarted(SystemClock.uptimeMillis());
+        this.source = source;
+        maxDecoders = Math.max(1, decodeThreads);
+        regionDecoders = new ArrayBlockingQueue<BitmapRegionDecoder>(maxDecoders);
 
-        // Grab the bounds for the scene dimensions
-        tmpOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(inputStream, null, tmpOptions);
-        setSceneSize(tmpOptions.outWidth, tmpOptions.outHeight);//设置scene尺寸为整个原始加载图片的尺寸
+        // The decoder parses the header, no separate pass for the bounds
+        BitmapRegionDecoder regionDecoder = source.openDecoder();
+        openDecoders = 1;
+        setSceneSize(regionDecoder.getWidth(), regionDecoder.getHeight());//设置scene尺寸为整个原始加载图片的尺寸
+        regionDecoders.add(regionDecoder);
 
-        // Create the sample image
-        tmpOptions.inJustDecodeBounds = false;
-        tmpOptions.inSampleSize = (1 << DOWN_SAMPLE_SHIFT);
-        sampleBitmap = BitmapFactory.decodeStream(inputStream, null, tmpOptions);
+        int shift = 0;
+        while ((long) (regionDecoder.getWidth() >> shift) * (regionDecoder.getHeight() >> shift) > SAMPLE_PIXELS)
+            shift++;
+        sampleShift = shift;
+        sampleName = "sample" + shift;
+
+        this.diskCache = diskCache;
+        imageKey = diskCache == null ? null : source.key();
+        sampleLoading = deferSample;
+
+        JpegRestartIndex index = null;
+        ByteBuffer data = null;
+        try {
+            data = source.data();
+            File file = source.file();
+            index = file != null ? JpegRestartIndex.open(file, data) : JpegRestartIndex.build(data);
+        } catch (IOException e) {
+            Log.w(TAG, "can't index the image", e);
+        }
+        jpegIndex = index != null && index.isUsable() ? index : null;
+        encoded = jpegIndex != null ? data : null;
 
         initialize();
     }
 
+    public interface OnOpenListener {
+        /**
+         * The scene knows the image's size and can be shown. Its sample is still being
+         * decoded, it fills in while the scene is shown. Called on the main thread.
+         */
+        void onOpened(InputStreamScene scene);
+
+        /**
+         * The image couldn't be opened. Called on the main thread.
+         */
+        void onOpenFailed(IOException e);
+    }
+
+    /**
+     * Open the image file at the path without blocking the caller, e.g. the UI thread.
+     * The scene is handed to the listener as soon as the image's header is read. First
+     * the image's EXIF thumbnail is shown, if there is one, then the sample as it is
+     * decoded, and then the tiles. See {@link SceneMetrics.Snapshot#timeToFirstPixelMillis}.
+     *
+     * @param decodeThreads How many regions to decode at the same time
+     * @param diskCache     Where to keep decoded pixels between sessions, or null
+     * @param listener      Told on the main thread once the scene is open, or null
+     * @return the scene once it is open. Cancel it to close the scene if it wasn't handed out yet.
+     */
+    public static Future<InputStreamScene> openAsync(final String path, int decodeThreads,
+                                                     DiskTileCache diskCache, OnOpenListener listener) {
+        return openAsync(new Callable<Source>() {
+            @Override
+            public Source call() throws IOException {
+                return fileSource(new File(path));
+            }
+        }, decodeThreads, diskCache, listener);
+    }
+
+    /**
+     * Read the stream into memory and open it without blocking the caller, see
+     * {@link #openAsync(String, int, DiskTileCache, OnOpenListener)}
+     */
+    public static Future<InputStreamScene> openAsync(final InputStream inputStream, int decodeThreads,
+                                                     DiskTileCache diskCache, OnOpenListener listener) {
+        return openAsync(new Callable<Source>() {
+            @Override
+            public Source call() throws IOException {
+                return bytesSource(readFully(inputStream));
+            }
+        }, decodeThreads, diskCache, listener);
+    }
+
+    private static Future<InputStreamScene> openAsync(final Callable<Source> opener, final int decodeThreads,
+                                                      final DiskTileCache diskCache, final OnOpenListener listener) {
+        final long started = SystemClock.uptimeMillis();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final InputStreamScene[] opened = new InputStreamScene[1];
+        final FutureTask<InputStreamScene> task = new FutureTask<InputStreamScene>(new Callable<InputStreamScene>() {
+            @Override
+            public InputStreamScene call() throws Exception {
+                Source source = opener.call();
+                try {
+                    opened[0] = new InputStreamScene(source, decodeThreads, diskCache, true);
+                } catch (IOException e) {
+                    source.close();
+                    throw e;
+                }
+                opened[0].getMetrics().onOpenStarted(started);
+                return opened[0];
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (listener == null || isCancelled())
+                    return;
+                final InputStreamScene scene;
+                try {
+                    scene = get();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    final IOException failure = cause instanceof IOException
+                            ? (IOException) cause : new IOException(cause);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onOpenFailed(failure);
+                        }
+                    });
+                    return;
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onOpened(scene);
+                    }
+                });
+            }
+        };
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                InputStreamScene scene = opened[0];
+                if (scene == null)
+                    return;
+                if (task.isCancelled())
+                    scene.close();
+                else
+                    scene.loadSample();
+            }
+        }, "sceneOpener").start();
+        return task;
+    }
+
+    private static Source bytesSource(byte[] data) {
+        return new BytesSource(data, 0, data.length);
+    }
+
+    private static Source fileSource(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        return new FileDescriptorSource(in.getFD(), in, file);
+    }
+
+    private static Source bufferSource(ByteBuffer buffer) {
+        if (buffer.hasArray())
+            return new BytesSource(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return bytesSource(data);
+    }
+
+    /**
+     * Close the file the scene opened itself. The scene can't decode anymore afterwards.
+     */
+    @Override
+    public void close() {
+        source.close();
+    }
+
+    /**
+     * Get the sample from the disk cache, or decode it. The EXIF thumbnail is shown while
+     * it is decoded, if there is one. Called by the constructor, on the opener thread
+     * of {@link #openAsync(String, int, DiskTileCache, OnOpenListener)}, or on the sample
+     * thread to bring back a trimmed sample. Does nothing if the sample is there.
+     */
+    private void loadSample() {
+        synchronized (sampleLock) {
+            if (sampleBitmap != null)
+                return;
+            sampleLoading = true;
+            try {
+                Bitmap sample = diskCache == null ? null : diskCache.get(imageKey, sampleName, null);
+                if (sample == null) {
+                    showPreview();
+                    sample = decodeSample();
+                    if (diskCache != null && sample != null)
+                        diskCache.put(imageKey, sampleName, sample);
+                }
+                if (sample != sampleBitmap)
+                    setSampleBitmap(sample);
+            } finally {
+                previewBitmap = null;
+                sampleLoading = false;
+            }
+        }
+    }
+
+    /**
+     * Show the thumbnail a camera stores in the EXIF header of a JPEG, a few kilobytes
+     * read at once, until the sample is there
+     */
+    private void showPreview() {
+        File file = source.file();
+        if (file == null)
+            return;
+        try {
+            byte[] thumbnail = new ExifInterface(file.getPath()).getThumbnail();
+            if (thumbnail == null)
+                return;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = inputStreamSceneoptions.inPreferredConfig;
+            Bitmap preview = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+            if (preview == null)
+                return;
+            previewBitmap = preview;
+            getMetrics().onContent();
+            notifyChanged();
+        } catch (IOException e) {
+            Log.w(TAG, "can't read the EXIF thumbnail", e);
+        }
+    }
+
+    /**
+     * Decode the whole image at the sample size. A JPEG with restart markers is decoded
+     * in {@link #SAMPLE_BANDS} bands from the top, each shown as soon as it is there,
+     * since every band costs only its own rows. Any other image is decoded at once, a
+     * band would decode every row above it again.
+     */
+    private Bitmap decodeSample() {
+        Point sceneSize = getSceneSize();
+        int sampleSize = 1 << sampleShift;
+        if (jpegIndex == null)
+            return decodeRegionAtOnce(new Rect(0, 0, sceneSize.x, sceneSize.y), sampleSize, null);
+        int width = SceneGeometry.scaledSize(sceneSize.x, sampleSize);
+        int height = SceneGeometry.scaledSize(sceneSize.y, sampleSize);
+        Bitmap sample = Bitmap.createBitmap(width, height, inputStreamSceneoptions.inPreferredConfig);
+        setSampleBitmap(sample, 0);
+        Canvas canvas = new Canvas(sample);
+        Rect bandRect = new Rect();
+        int bandRows = (height + SAMPLE_BANDS - 1) / SAMPLE_BANDS;
+        for (int y = 0; y < height; y += bandRows) {
+            int rows = Math.min(bandRows, height - y);
+            bandRect.set(0, y * sampleSize, sceneSize.x, Math.min(sceneSize.y, (y + rows) * sampleSize));
+            Bitmap band = decodeRegionAtOnce(bandRect, sampleSize, null);
+            if (band == null) {
+                Log.w(TAG, "can't decode the sample from row " + bandRect.top);
+                break;
+            }
+            canvas.drawBitmap(band, 0, y, null);
+            band.recycle();
+            setSampleRows(y + rows);
+        }
+        return sample;
+    }
+
+    private void setSampleBitmap(Bitmap bitmap) {
+        setSampleBitmap(bitmap, bitmap == null ? 0 : bitmap.getHeight());
+    }
+
+    /**
+     * @param rows how many rows from the top are decoded yet
+     */
+    private void setSampleBitmap(Bitmap bitmap, int rows) {
+        // The rows first, so the draw thread never takes undecoded rows of the new bitmap
+        sampleRows = 0;
+        sampleBitmap = bitmap;
+        getMemoryBudget().setSampleBytes(bitmap == null ? 0 : bitmap.getRowBytes() * bitmap.getHeight());
+        setSampleRows(rows);
+    }
+
+    private void setSampleRows(int rows) {
+        sampleRows = rows;
+        if (rows > 0)
+            getMetrics().onContent();
+        notifyChanged();
+    }
+
     @Override
-    protected Bitmap fillCache(Rect origin) {
-        Bitmap bitmap = null;
+    protected void trimSample() {
+        // Waits for a load of the opener thread, so that it doesn't bring the sample back after
+        synchronized (sampleLock) {
+            // The draw thread may still be drawing it, leave recycling to the GC
+            setSampleBitmap(null);
+        }
+    }
+
+    @Override
+    protected void restoreSample() {
+        // Still being opened, the opener thread brings it
+        if (sampleLoading)
+            return;
+        loadSample();
+    }
+
+    /**
+     * Take an idle decoder, opening a new one if all are busy and there are fewer
+     * than one per decode thread.
+     *
+     * @return the decoder, to be given back to {@link #regionDecoders}, or null if
+     * the thread was interrupted or the decoder couldn't be opened
+     */
+    private BitmapRegionDecoder takeDecoder() {
+        BitmapRegionDecoder regionDecoder = regionDecoders.poll();
         if (regionDecoder != null)
-            bitmap = regionDecoder.decodeRegion(origin, inputStreamSceneoptions);
+            return regionDecoder;
+        synchronized (regionDecoders) {
+            if (openDecoders < maxDecoders) {
+                try {
+                    regionDecoder = source.openDecoder();
+                    openDecoders++;
+                    return regionDecoder;
+                } catch (IOException e) {
+                    Log.e(TAG, "can't open a decoder", e);
+                    return null;
+                }
+            }
+        }
+        try {
+            return regionDecoders.take();
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(inputStream.available(), 64 * 1024));
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    @Override
+    protected Bitmap fillCache(Rect origin, int sampleSize) {
+        Bitmap reuse = obtainBitmap(
+                SceneGeometry.scaledSize(origin.width(), sampleSize),
+                SceneGeometry.scaledSize(origin.height(), sampleSize),
+                inputStreamSceneoptions.inPreferredConfig);
+        String name = null;
+        if (diskCache != null) {
+            name = sampleSize + "_" + origin.left + "_" + origin.top;
+            Bitmap bitmap = diskCache.get(imageKey, name, reuse);
+            if (bitmap != null) {
+                if (bitmap != reuse)
+                    releaseBitmap(reuse);
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = decodeRegion(origin, sampleSize, reuse);
+        if (name != null && bitmap != null)
+            diskCache.put(imageKey, name, bitmap);
         return bitmap;
     }
 
+    /**
+     * Decode a tile. Bands of a JPEG with restart markers cost only their own rows, so a
+     * big tile of one is decoded in bands and can be given up between them. A band of
+     * any other image decodes every row above it again, which would cost more than the
+     * cancel saves; such a tile is decoded at once, and only given up before and after
+     * it waits for a decoder.
+     */
+    private Bitmap decodeRegion(Rect origin, int sampleSize, Bitmap reuse) {
+        if (jpegIndex != null && sampleSize >= SPLIT_SAMPLE_SIZE && origin.height() >= SPLIT_BANDS * sampleSize)
+            return decodeRegionInBands(origin, sampleSize, reuse);
+        if (isFillCancelled()) {
+            releaseBitmap(reuse);
+            return null;
+        }
+        return decodeRegionAtOnce(origin, sampleSize, reuse);
+    }
+
+    /**
+     * Decode the region a band of rows at a time, giving up between two bands
+     * once the tile is no longer wanted.
+     *
+     * @return the bitmap, or null if cancelled
+     */
+    private Bitmap decodeRegionInBands(Rect origin, int sampleSize, Bitmap reuse) {
+        Bitmap.Config config = inputStreamSceneoptions.inPreferredConfig;
+        int width = SceneGeometry.scaledSize(origin.width(), sampleSize);
+        int height = SceneGeometry.scaledSize(origin.height(), sampleSize);
+        Bitmap bitmap = reuse != null ? reuse : Bitmap.createBitmap(width, height, config);
+        Canvas canvas = new Canvas(bitmap);
+        Rect bandRect = new Rect();
+        int bandRows = (height + SPLIT_BANDS - 1) / SPLIT_BANDS;
+        for (int y = 0; y < height; y += bandRows) {
+            if (isFillCancelled()) {
+                releaseBitmap(bitmap);
+                return null;
+            }
+            int rows = Math.min(bandRows, height - y);
+            bandRect.set(origin.left, origin.top + y * sampleSize,
+                    origin.right, Math.min(origin.bottom, origin.top + (y + rows) * sampleSize));
+            Bitmap band = decodeRegionAtOnce(bandRect, sampleSize, obtainBitmap(width, rows, config));
+            if (band == null) {
+                releaseBitmap(bitmap);
+                return null;
+            }
+            canvas.drawBitmap(band, 0, y, null);
+            releaseBitmap(band);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeRegionAtOnce(Rect origin, int sampleSize, Bitmap reuse) {
+        if (jpegIndex != null && jpegIndex.bandTop(origin.top) > 0)
+            return decodeRegionFromBand(origin, sampleSize, reuse);
+        BitmapRegionDecoder regionDecoder = takeDecoder();
+        if (regionDecoder == null) {
+            releaseBitmap(reuse);
+            return null;
+        }
+        try {
+            // Waiting for the decoder may have taken long enough for the viewport to move on
+            if (isFillCancelled()) {
+                releaseBitmap(reuse);
+                return null;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = inputStreamSceneoptions.inPreferredConfig;
+            options.inSampleSize = sampleSize;
+            options.inMutable = true;
+            options.inBitmap = reuse;
+            try {
+                return regionDecoder.decodeRegion(origin, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder couldn't reuse the bitmap, decode into a new one
+                releaseBitmap(options.inBitmap);
+                options.inBitmap = null;
+                return regionDecoder.decodeRegion(origin, options);
+            }
+        } finally {
+            regionDecoders.add(regionDecoder);
+        }
+    }
+
+    /**
+     * Decode the region from a JPEG of just the rows of MCUs around it. The decoder
+     * of the band parses a few small tables, and then only the band is decoded.
+     */
+    private Bitmap decodeRegionFromBand(Rect origin, int sampleSize, Bitmap reuse) {
+        JpegRestartIndex.Band band = jpegIndex.extract(encoded, origin.top, origin.bottom);
+        BitmapRegionDecoder bandDecoder;
+        try {
+            bandDecoder = BitmapRegionDecoder.newInstance(band.bytes, 0, band.bytes.length, false);
+        } catch (IOException e) {
+            Log.e(TAG, "can't decode a band of the image", e);
+            releaseBitmap(reuse);
+            return null;
+        }
+        try {
+            Rect bandRect = new Rect(origin);
+            bandRect.offset(0, -band.top);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = inputStreamSceneoptions.inPreferredConfig;
+            options.inSampleSize = sampleSize;
+            options.inMutable = true;
+            options.inBitmap = reuse;
+            try {
+                return bandDecoder.decodeRegion(bandRect, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder couldn't reuse the bitmap, decode into a new one
+                releaseBitmap(options.inBitmap);
+                options.inBitmap = null;
+                return bandDecoder.decodeRegion(bandRect, options);
+            }
+        } finally {
+            bandDecoder.recycle();
+        }
+    }
+
+    /**
+     * Only the draw thread draws the sample, once per frame, so these are reused
+     */
+    private final Canvas sampleCanvas = new Canvas();
+    private final Rect sampleSrcRect = new Rect();
+    private final Rect sampleDstRect = new Rect();
+
+    private final Point sampleSceneSize = new Point();
+
     @Override
     protected void drawSampleRectIntoBitmap(Bitmap currentViewportBitmap, Rect windowViewportRect) {
-        if (currentViewportBitmap != null) {
-            Canvas canvas = new Canvas(currentViewportBitmap);
-            int left = (windowViewportRect.left >> DOWN_SAMPLE_SHIFT);
-            int top = (windowViewportRect.top >> DOWN_SAMPLE_SHIFT);
-            int right = left + (windowViewportRect.width() >> DOWN_SAMPLE_SHIFT);
-            int bottom = top + (windowViewportRect.height() >> DOWN_SAMPLE_SHIFT);
-            Rect srcRect = new Rect(left, top, right, bottom);
-            Rect identityRect = new Rect(0, 0, canvas.getWidth(), canvas.getHeight());
+        if (currentViewportBitmap == null)
+            return;
+        Bitmap sampleBitmap = this.sampleBitmap;
+        int rows = sampleRows;
+        Bitmap previewBitmap = this.previewBitmap;
+        Canvas canvas = sampleCanvas;
+        canvas.setBitmap(currentViewportBitmap);
+        Rect srcRect = sampleSrcRect;
+        Rect identityRect = sampleDstRect;
+        identityRect.set(0, 0, canvas.getWidth(), canvas.getHeight());
+        if (previewBitmap != null && (sampleBitmap == null || rows < sampleBitmap.getHeight())) {
+            // Under the rows of the sample that aren't there yet
+            getSceneSize(sampleSceneSize);
+            float scaleX = (float) previewBitmap.getWidth() / sampleSceneSize.x;
+            float scaleY = (float) previewBitmap.getHeight() / sampleSceneSize.y;
+            srcRect.set(
+                    (int) (windowViewportRect.left * scaleX),
+                    (int) (windowViewportRect.top * scaleY),
+                    (int) Math.ceil(windowViewportRect.right * scaleX),
+                    (int) Math.ceil(windowViewportRect.bottom * scaleY));
+            canvas.drawBitmap(previewBitmap, srcRect, identityRect, null);
+        }
+        if (sampleBitmap != null) {
+            int left = (windowViewportRect.left >> sampleShift);
+            int top = (windowViewportRect.top >> sampleShift);
+            int right = left + (windowViewportRect.width() >> sampleShift);
+            int bottom = top + (windowViewportRect.height() >> sampleShift);
+            if (bottom > rows) {
+                if (rows <= top)
+                    return;
+                identityRect.bottom = (int) ((long) identityRect.bottom * (rows - top) / (bottom - top));
+                bottom = rows;
+            }
+            srcRect.set(left, top, right, bottom);
             canvas.drawBitmap(
                     sampleBitmap,
                     srcRect,
@@ -100,59 +833,20 @@ public class InputStreamScene extends Scene {
         redPaint.setStrokeWidth(5L);
     }
     private Rect calculatedCacheWindowRect = new Rect();
+    private final SceneGeometry.Box viewportBox = new SceneGeometry.Box();
+    private final SceneGeometry.Box cacheWindowBox = new SceneGeometry.Box();
 
     @Override
-    protected Rect calculateCacheWindow(Rect viewportRect) {
-        long bytesToUse = Runtime.getRuntime().maxMemory() * percent / 100;
+    protected Rect calculateCacheWindow(Rect viewportRect, int sampleSize, int leadX, int leadY) {
+        double pixels = (double) getMemoryBudget().getWindowBytes()
+                / Scene.bytesPerPixel(inputStreamSceneoptions.inPreferredConfig);
         Point sceneSizePoint = getSceneSize();
-
-        int viewportRectWidth = viewportRect.width();
-        int viewportRectHeight = viewportRect.height();
-
-        // Calculate the max size of the margins to fit in our memory budget
-        int tw = 0;
-        int th = 0;
-        int mw = tw;
-        int mh = th;
-        while ((viewportRectWidth + tw) * (viewportRectHeight + th) * BYTES_PER_PIXEL < bytesToUse) {
-            mw = tw++;
-            mh = th++;
-        }
-
-        // Trim the margins if they're too big.
-        if (viewportRectWidth + mw > sceneSizePoint.x) // viewport width + margin width > width of the image
-            mw = Math.max(0, sceneSizePoint.x - viewportRectWidth);
-        if (viewportRectHeight + mh > sceneSizePoint.y) // viewport height + margin height > height of the image
-            mh = Math.max(0, sceneSizePoint.y - viewportRectHeight);
-
-        // Figure out the left & right based on the margin. We assume our viewportRect
-        // is <= our size. If that's not the case, then this logic breaks.
-        int left = viewportRect.left - (mw >> 1);
-        int right = viewportRect.right + (mw >> 1);
-        if (left < 0) {
-            right = right - left; // Add's the overage on the left side back to the right
-            left = 0;
-        }
-        if (right > sceneSizePoint.x) {
-            left = left - (right - sceneSizePoint.x); // Adds overage on right side back to left
-            right = sceneSizePoint.x;
-        }
-
-        // Figure out the top & bottom based on the margin. We assume our viewportRect
-        // is <= our size. If that's not the case, then this logic breaks.
-        int top = viewportRect.top - (mh >> 1);
-        int bottom = viewportRect.bottom + (mh >> 1);
-        if (top < 0) {
-            bottom = bottom - top; // Add's the overage on the top back to the bottom
-            top = 0;
-        }
-        if (bottom > sceneSizePoint.y) {
-            top = top - (bottom - sceneSizePoint.y); // Adds overage on bottom back to top
-            bottom = sceneSizePoint.y;
-        }
+        viewportBox.set(viewportRect.left, viewportRect.top, viewportRect.right, viewportRect.bottom);
+        SceneGeometry.cacheWindow(viewportBox, sampleSize, pixels, leadX, leadY,
+                sceneSizePoint.x, sceneSizePoint.y, cacheWindowBox);
 
         // Set the origin based on our new calculated values.
-        calculatedCacheWindowRect.set(left, top, right, bottom);
+        calculatedCacheWindowRect.set(cacheWindowBox.left, cacheWindowBox.top, cacheWindowBox.right, cacheWindowBox.bottom);
         if (DEBUG)
             Log.d(TAG, "new cache.originRect = " + calculatedCacheWindowRect.toShortString() + " size=" + sceneSizePoint.toString());
         return calculatedCacheWindowRect;
@@ -160,9 +854,8 @@ public class InputStreamScene extends Scene {
 
     @Override
     protected void fillCacheOutOfMemoryError(OutOfMemoryError error) {
-        if (percent > 0)
-            percent -= 1;
-        Log.e(TAG, String.format("caught oom -- cache now at %d percent.", percent));
+        getMemoryBudget().onOutOfMemory();
+        Log.e(TAG, String.format("caught oom -- cache now at %d percent.", getMemoryBudget().getPercent()));
     }
 
     @Override
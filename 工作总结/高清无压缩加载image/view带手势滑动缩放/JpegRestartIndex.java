@@ -0,0 +1,435 @@
+package com.bollin1206.superbigimage.view;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * JPEG 重启标记索引
+ * Where the rows of MCUs of a baseline JPEG start in its entropy coded data, so that
+ * a region near the bottom doesn't have to be decoded through everything above it.
+ * <p>The decoder's state at a restart marker is known without decoding anything: the
+ * DC predictors are zero and the bit stream starts on a byte. So the data from a
+ * restart marker that starts a row of MCUs on, behind the tables and a frame header
+ * with the height of the rows taken, is a JPEG of its own. {@link #extract} makes
+ * one for any band of rows, and it decodes in time proportional to the band.</p>
+ * <p>Indexing reads the markers once and nothing else. Images without restart
+ * markers, or progressive ones, get an index without checkpoints, so they aren't
+ * scanned again for nothing. Plain Java, it runs on a desktop JVM as well.</p>
+ */
+public final class JpegRestartIndex {
+    private static final int MAGIC = 0x53424a49;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".rstidx";
+    /**
+     * More than the tables and headers of any real JPEG, which take a few kilobytes
+     */
+    private static final int MAX_HEADER_BYTES = 1024 * 1024;
+    /**
+     * The largest width and height a JPEG frame header can give
+     */
+    private static final int MAX_SIDE = 0xFFFF;
+    /**
+     * Rows of MCUs are 8, 16, 24 or 32 rows of pixels high, by the vertical sampling factor
+     */
+    private static final int MAX_MCU_HEIGHT = 32;
+
+    /**
+     * A standalone JPEG of some rows of the image
+     */
+    public static final class Band {
+        /**
+         * The row of the image that is row 0 of the band
+         */
+        public final int top;
+        public final int height;
+        public final byte[] bytes;
+
+        Band(int top, int height, byte[] bytes) {
+            this.top = top;
+            this.height = height;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int mcuHeight;
+    /**
+     * SOI, the tables, the frame header and the scan header, without the metadata
+     */
+    private final byte[] header;
+    /**
+     * Where the height is in the frame header of {@link #header}
+     */
+    private final int heightOffset;
+    /**
+     * The first row of MCUs of each checkpoint and where its data starts
+     */
+    private final int[] rows;
+    private final long[] offsets;
+    /**
+     * Where the entropy coded data of the scan ends
+     */
+    private final long scanEnd;
+
+    private JpegRestartIndex(int width, int height, int mcuHeight, byte[] header, int heightOffset,
+                             int[] rows, long[] offsets, long scanEnd) {
+        this.width = width;
+        this.height = height;
+        this.mcuHeight = mcuHeight;
+        this.header = header;
+        this.heightOffset = heightOffset;
+        this.rows = rows;
+        this.offsets = offsets;
+        this.scanEnd = scanEnd;
+    }
+
+    /**
+     * An index that can't be used, to remember that the image has nothing to index
+     */
+    private static JpegRestartIndex none() {
+        return new JpegRestartIndex(0, 0, 0, new byte[0], 0, new int[0], new long[0], 0);
+    }
+
+    /**
+     * Whether bands can be extracted, i.e. the image is a baseline JPEG with restart
+     * markers at the start of some rows of MCUs
+     */
+    public boolean isUsable() {
+        return rows.length > 1;
+    }
+
+    public int getCheckpointCount() {
+        return rows.length;
+    }
+
+    /**
+     * The file next to the source the index of the source is kept in
+     */
+    public static File indexFileFor(File source) {
+        return new File(source.getPath() + SUFFIX);
+    }
+
+    /**
+     * Read the index kept next to the source, or index the source and keep it there.
+     * If the index can't be written, e.g. the directory is read only, it is built
+     * again the next time.
+     *
+     * @param data the whole file
+     */
+    public static JpegRestartIndex open(File source, ByteBuffer data) {
+        File file = indexFileFor(source);
+        JpegRestartIndex index = load(file, source);
+        if (index != null)
+            return index;
+        index = build(data);
+        try {
+            index.save(file, source);
+        } catch (IOException e) {
+            // The index is still good for this session
+        }
+        return index;
+    }
+
+    //region build
+
+    private static int u8(ByteBuffer data, int position) {
+        return data.get(position) & 0xff;
+    }
+
+    private static int u16(ByteBuffer data, int position) {
+        return (u8(data, position) << 8) | u8(data, position + 1);
+    }
+
+    /**
+     * Index the JPEG between 0 and the buffer's limit
+     */
+    public static JpegRestartIndex build(ByteBuffer data) {
+        int limit = data.limit();
+        if (limit < 4 || u8(data, 0) != 0xFF || u8(data, 1) != 0xD8)
+            return none();
+        ByteArrayOutputStream header = new ByteArrayOutputStream(1024);
+        header.write(0xFF);
+        header.write(0xD8);
+        int width = 0;
+        int height = 0;
+        int heightOffset = -1;
+        int components = 0;
+        int maxH = 1;
+        int maxV = 1;
+        int restartInterval = 0;
+        int position = 2;
+        int scanStart = -1;
+        while (scanStart < 0) {
+            // Markers may be padded with any number of 0xFF
+            while (position < limit && u8(data, position) == 0xFF && position + 1 < limit && u8(data, position + 1) == 0xFF)
+                position++;
+            if (position + 4 > limit || u8(data, position) != 0xFF)
+                return none();
+            int marker = u8(data, position + 1);
+            int length = u16(data, position + 2);
+            if (position + 2 + length > limit)
+                return none();
+            boolean keep = false;
+            switch (marker) {
+                case 0xC0: // baseline
+                case 0xC1: // extended sequential, Huffman
+                    heightOffset = header.size() + 5;
+                    height = u16(data, position + 5);
+                    width = u16(data, position + 7);
+                    components = u8(data, position + 9);
+                    for (int i = 0; i < components; i++) {
+                        int sampling = u8(data, position + 11 + 3 * i);
+                        maxH = Math.max(maxH, sampling >> 4);
+                        maxV = Math.max(maxV, sampling & 0x0f);
+                    }
+                    keep = true;
+                    break;
+                case 0xC4: // Huffman tables
+                case 0xDB: // quantization tables
+                case 0xE0: // JFIF
+                case 0xEE: // Adobe, tells RGB from YCbCr
+                    keep = true;
+                    break;
+                case 0xDD:
+                    restartInterval = u16(data, position + 4);
+                    keep = true;
+                    break;
+                case 0xDA:
+                    // Only one scan with every component, as a baseline encoder writes it
+                    if (heightOffset < 0 || u8(data, position + 4) != components)
+                        return none();
+                    scanStart = position + 2 + length;
+                    keep = true;
+                    break;
+                case 0xD9:
+                    return none();
+                default:
+                    // Progressive, lossless and arithmetic frames can't be cut
+                    if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC)
+                        return none();
+                    break;
+            }
+            if (keep) {
+                for (int i = position; i < position + 2 + length; i++)
+                    header.write(data.get(i));
+            }
+            position += 2 + length;
+        }
+        if (restartInterval == 0 || height == 0)
+            return none();
+
+        // A single component is coded in 8x8 blocks whatever its sampling factors
+        int mcuWidth = components == 1 ? 8 : 8 * maxH;
+        int mcuHeight = components == 1 ? 8 : 8 * maxV;
+        int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+        int mcuRows = (height + mcuHeight - 1) / mcuHeight;
+
+        int[] rows = new int[64];
+        long[] offsets = new long[64];
+        int count = 0;
+        rows[count] = 0;
+        offsets[count++] = scanStart;
+        long segment = 0;
+        long scanEnd = limit;
+        position = scanStart;
+        while (position + 1 < limit) {
+            if (u8(data, position) != 0xFF) {
+                position++;
+                continue;
+            }
+            int next = u8(data, position + 1);
+            if (next == 0x00) {
+                // A stuffed 0xFF of the data
+                position += 2;
+            } else if (next == 0xFF) {
+                position++;
+            } else if (next >= 0xD0 && next <= 0xD7) {
+                segment++;
+                long mcu = segment * restartInterval;
+                if (mcu % mcusPerRow == 0 && mcu / mcusPerRow < mcuRows) {
+                    if (count == rows.length) {
+                        rows = Arrays.copyOf(rows, count * 2);
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    rows[count] = (int) (mcu / mcusPerRow);
+                    offsets[count++] = position + 2;
+                }
+                position += 2;
+            } else {
+                scanEnd = position;
+                break;
+            }
+        }
+        return new JpegRestartIndex(width, height, mcuHeight, header.toByteArray(), heightOffset,
+                Arrays.copyOf(rows, count), Arrays.copyOf(offsets, count), scanEnd);
+    }
+    //endregion
+
+    //region extract
+
+    /**
+     * Make a JPEG of the rows of MCUs that hold the image's rows top to bottom
+     *
+     * @param data the whole file, as given to {@link #build}
+     * @return the band, which starts at the last checkpoint above top
+     */
+    public Band extract(ByteBuffer data, int top, int bottom) {
+        // A row more on either side, chroma is upsampled from the neighbouring rows
+        int first = checkpointAt(Math.max(0, top - 1));
+        int last = first + 1;
+        while (last < rows.length && rows[last] * mcuHeight <= bottom)
+            last++;
+        long start = offsets[first];
+        // Up to the restart marker in front of the next checkpoint, or to the end of the scan
+        long end = last < rows.length ? offsets[last] - 2 : scanEnd;
+        int bandTop = rows[first] * mcuHeight;
+        int bandBottom = last < rows.length ? rows[last] * mcuHeight : height;
+
+        int length = (int) (end - start);
+        byte[] bytes = new byte[header.length + length + 2];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        bytes[heightOffset] = (byte) ((bandBottom - bandTop) >> 8);
+        bytes[heightOffset + 1] = (byte) (bandBottom - bandTop);
+        ByteBuffer source = data.duplicate();
+        source.position((int) start);
+        source.get(bytes, header.length, length);
+        // The decoder expects RST0 after the first interval, RST1 after the next and so on
+        int restart = 0;
+        for (int i = header.length; i < header.length + length - 1; i++) {
+            if (bytes[i] != (byte) 0xFF)
+                continue;
+            int next = bytes[i + 1] & 0xff;
+            if (next == 0xFF)
+                // Fill, the marker is yet to come
+                continue;
+            if (next >= 0xD0 && next <= 0xD7)
+                bytes[i + 1] = (byte) (0xD0 + (restart++ & 7));
+            i++;
+        }
+        bytes[bytes.length - 2] = (byte) 0xFF;
+        bytes[bytes.length - 1] = (byte) 0xD9;
+        return new Band(bandTop, bandBottom - bandTop, bytes);
+    }
+
+    /**
+     * The last checkpoint whose first row is at or above the row of the image
+     */
+    private int checkpointAt(int row) {
+        int mcuRow = row / mcuHeight;
+        int i = Arrays.binarySearch(rows, mcuRow);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    /**
+     * Where the band of {@link #extract} from the row on would start, 0 if the index
+     * doesn't help there
+     */
+    public int bandTop(int row) {
+        return rows.length == 0 ? 0 : rows[checkpointAt(Math.max(0, row - 1))] * mcuHeight;
+    }
+    //endregion
+
+    //region load/save
+
+    /**
+     * Read an index saved by {@link #save}. A damaged file, or one of another build, is
+     * stale like one of an older source: every number is checked against what indexing
+     * the source could give before anything is allocated from it or indexed with it.
+     *
+     * @return the index, or null if there is none or it can't be trusted
+     */
+    private static JpegRestartIndex load(File file, File source) {
+        if (!file.isFile())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return null;
+                // Stale once the source changed
+                long sourceLength = source.length();
+                if (in.readLong() != sourceLength || in.readLong() != source.lastModified())
+                    return null;
+                int width = in.readInt();
+                int height = in.readInt();
+                int mcuHeight = in.readInt();
+                if (width < 0 || width > MAX_SIDE || height < 0 || height > MAX_SIDE
+                        || mcuHeight < 0 || mcuHeight > MAX_MCU_HEIGHT || mcuHeight % 8 != 0)
+                    return null;
+                int heightOffset = in.readInt();
+                int headerLength = in.readInt();
+                if (headerLength < 0 || headerLength > MAX_HEADER_BYTES || headerLength > sourceLength)
+                    return null;
+                // The height is a big-endian short within the header; an index without checkpoints has neither
+                if (headerLength == 0 ? heightOffset != 0 : heightOffset < 0 || heightOffset > headerLength - 2)
+                    return null;
+                byte[] header = new byte[headerLength];
+                in.readFully(header);
+                long scanEnd = in.readLong();
+                if (scanEnd < 0 || scanEnd > sourceLength)
+                    return null;
+                int count = in.readInt();
+                // At most one checkpoint per row of MCUs, and only with the header to put in front of them
+                int mcuRows = mcuHeight == 0 ? 0 : (height + mcuHeight - 1) / mcuHeight;
+                if (count < 0 || count > mcuRows || (count > 0 && headerLength == 0))
+                    return null;
+                int[] rows = new int[count];
+                long[] offsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    rows[i] = in.readInt();
+                    offsets[i] = in.readLong();
+                    // From the top row down, and the data on past the restart marker in front of each checkpoint
+                    if (rows[i] < 0 || rows[i] >= mcuRows || offsets[i] < 0 || offsets[i] > scanEnd
+                            || (i == 0 ? rows[i] != 0 : rows[i] <= rows[i - 1] || offsets[i] < offsets[i - 1] + 2))
+                        return null;
+                }
+                return new JpegRestartIndex(width, height, mcuHeight, header, heightOffset, rows, offsets, scanEnd);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void save(File file, File source) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(mcuHeight);
+            out.writeInt(heightOffset);
+            out.writeInt(header.length);
+            out.write(header);
+            out.writeLong(scanEnd);
+            out.writeInt(rows.length);
+            for (int i = 0; i < rows.length; i++) {
+                out.writeInt(rows[i]);
+                out.writeLong(offsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+        // Whole or not at all, a reader never sees half an index
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("can't write " + file);
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,159 @@
+package com.bollin1206.superbigimage.view;
+
+/**
+ * 内存预算
+ * Decides how many bytes the image cache may use and keeps track of what it does use.
+ * The budget is a percentage of the heap, scaled down when the system asks the app to
+ * trim its memory, so the cache gives memory back before an OutOfMemoryError rather
+ * than after.
+ */
+public class MemoryBudget {
+    static final int DEFAULT_PERCENT = 5;
+
+    /**
+     * The levels of android.content.ComponentCallbacks2#onTrimMemory, as numbers so that
+     * the budget runs off Android too
+     */
+    static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    static final int TRIM_MEMORY_MODERATE = 60;
+
+    private final long maxMemory = Runtime.getRuntime().maxMemory();
+
+    /**
+     * What percent of total memory should we use for the cache? The bigger the cache,
+     * the longer it takes to read -- 1.2 secs for 25%, 600ms for 10%, 500ms for 5%.
+     * User experience seems to be best for smaller values.
+     */
+    private int percent; // Above 25 and we get OOMs
+    /**
+     * How much of the budget is left after the last trim, in 1/8ths
+     */
+    private int trimEighths = 8;
+    private boolean sampleTrimmed = false;
+    /**
+     * The share of a {@link SceneCacheManager}'s budget, or -1 for a percent of the heap
+     */
+    private long sharedBytes = -1;
+
+    private long sampleBytes = 0;
+    private long usedBytes = 0;
+    private long highWaterBytes = 0;
+    private long evictions = 0;
+
+    public MemoryBudget(int percent) {
+        this.percent = percent;
+    }
+
+    /**
+     * The bytes the tile cache may hold, after trimming
+     */
+    public synchronized long getCacheBytes() {
+        long bytes = sharedBytes >= 0 ? sharedBytes : maxMemory * percent / 100;
+        return bytes * trimEighths / 8;
+    }
+
+    /**
+     * Use this many bytes instead of a percent of the heap, because a
+     * {@link SceneCacheManager} shares one budget among several scenes.
+     *
+     * @param bytes the share, or -1 to go back to the percent
+     */
+    synchronized void setSharedBytes(long bytes) {
+        sharedBytes = bytes;
+    }
+
+    /**
+     * The bytes of the cache window, half the cache. The other half keeps tiles
+     * around the window that the user may pan back to.
+     */
+    public synchronized long getWindowBytes() {
+        return getCacheBytes() / 2;
+    }
+
+    public synchronized int getPercent() {
+        return percent;
+    }
+
+    /**
+     * React to {@link android.content.ComponentCallbacks2#onTrimMemory(int)}. While the app
+     * runs, the cache is shrunk more the lower memory gets. Once the UI is hidden every tile
+     * goes, and from {@link #TRIM_MEMORY_MODERATE} on the sample
+     * too, see {@link #isSampleTrimmed()}.
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            trimEighths = 0;
+            sampleTrimmed = level >= TRIM_MEMORY_MODERATE;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimEighths = Math.min(trimEighths, 1);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimEighths = Math.min(trimEighths, 2);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trimEighths = Math.min(trimEighths, 4);
+        }
+    }
+
+    /**
+     * The system is no longer short of memory, e.g. the UI is shown again
+     */
+    public synchronized void restore() {
+        trimEighths = 8;
+        sampleTrimmed = false;
+    }
+
+    /**
+     * Whether the sample should be let go until {@link #restore()}
+     */
+    public synchronized boolean isSampleTrimmed() {
+        return sampleTrimmed;
+    }
+
+    /**
+     * An OutOfMemoryError got through anyway, use a smaller share of the heap from now on
+     */
+    public synchronized void onOutOfMemory() {
+        // A shared budget shrinks by the same share as a step of the percent
+        if (sharedBytes > 0)
+            sharedBytes -= sharedBytes / Math.max(1, percent);
+        if (percent > 0)
+            percent -= 1;
+    }
+
+    public synchronized void setSampleBytes(long bytes) {
+        long tileBytes = usedBytes - sampleBytes;
+        sampleBytes = bytes;
+        onUsage(tileBytes + sampleBytes);
+    }
+
+    /**
+     * @param bytes what the tiles, pooled bitmaps and sample add up to now
+     */
+    synchronized void onUsage(long bytes) {
+        usedBytes = bytes;
+        if (usedBytes > highWaterBytes)
+            highWaterBytes = usedBytes;
+    }
+
+    synchronized void onEviction() {
+        evictions++;
+    }
+
+    synchronized long getSampleBytes() {
+        return sampleBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,21 @@
+package com.bollin1206.superbigimage.view;
+
+/**
+ * 像素画布
+ * Draws {@link Pixels} into other pixels, scaling them to fit. One canvas is used by one
+ * thread at a time, it keeps whatever it needs between calls so that drawing a frame
+ * allocates nothing.
+ */
+public interface PixelCanvas {
+    /**
+     * Draw into these pixels from now on
+     */
+    void setTarget(Pixels target);
+
+    /**
+     * Draw the src area of the pixels, scaled, into the dst area of the target
+     *
+     * @param src the area of the pixels to draw, or null for all of them
+     */
+    void drawPixels(Pixels pixels, SceneGeometry.Box src, SceneGeometry.Box dst);
+}
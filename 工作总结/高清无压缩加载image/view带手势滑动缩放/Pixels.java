@@ -0,0 +1,32 @@
+package com.bollin1206.superbigimage.view;
+
+/**
+ * 像素缓冲
+ * Decoded pixels the engine keeps, pools and draws: a tile, a sample or the frame of the
+ * viewport. A Bitmap on Android, a BufferedImage on a desktop JVM, see {@link Platform}.
+ * The engine never looks at the pixels themselves, it only sizes, pools and draws them.
+ */
+public interface Pixels {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * How much memory the pixels take
+     */
+    int getByteCount();
+
+    /**
+     * The pixel format, so that only buffers of the same format are reused for one another
+     */
+    int getFormat();
+
+    /**
+     * Whether a decoder can write into these pixels again, see {@link BitmapPool}
+     */
+    boolean isReusable();
+
+    void recycle();
+
+    boolean isRecycled();
+}
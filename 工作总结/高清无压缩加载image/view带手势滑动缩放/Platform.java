@@ -0,0 +1,33 @@
+package com.bollin1206.superbigimage.view;
+
+/**
+ * 平台适配
+ * What the engine of {@link PortableScene} needs from the platform it runs on: pixels
+ * to draw the viewport into, a canvas, a clock and a log. {@link AndroidPlatform} is the
+ * one of the app. tools/JvmPlatform runs the same engine on a desktop JVM, headless, for
+ * load tests and profilers.
+ */
+public abstract class Platform {
+    /**
+     * New pixels of the format the platform draws frames in
+     */
+    public abstract Pixels createPixels(int width, int height);
+
+    public abstract PixelCanvas createCanvas();
+
+    /**
+     * Milliseconds of a monotonic clock, the same one input events are stamped with
+     */
+    public abstract long uptimeMillis();
+
+    /**
+     * Whether to log what the engine does in detail, e.g. because a debugger is attached
+     */
+    public abstract boolean isVerbose();
+
+    public abstract void debug(String tag, String message);
+
+    public abstract void warn(String tag, String message);
+
+    public abstract void error(String tag, String message, Throwable error);
+}
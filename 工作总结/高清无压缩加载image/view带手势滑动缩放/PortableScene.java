@@ -0,0 +1,1352 @@
+package com.bollin1206.superbigimage.view;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * +-------------------------------------------------------------------+
+ * |                                        |                          |
+ * |  +------------------------+            |                          |
+ * |  |                        |            |                          |
+ * |  |                        |            |                          |
+ * |  |                        |            |                          |
+ * |  |        显示窗口         |            |                          |
+ * |  +------------------------+            |                          |
+ * |                                        |                          |
+ * |                                        |                          |
+ * |                                        |                          |
+ * |                        缓存尺寸         |                          |
+ * |----------------------------------------+                          |
+ * |                                                                   |
+ * |                                                                   |
+ * |                                                                   |
+ * |                                                                   |
+ * |                                                                   |
+ * |                               实际超大图片尺寸                      |
+ * +-------------------------------------------------------------------+
+ */
+
+/**
+ * 跨平台场景引擎
+ * The viewport, the tile cache and its threads of a {@link Scene}, on {@link Pixels},
+ * {@link PixelCanvas} and {@link SceneGeometry.Box} instead of Android's Bitmap, Canvas
+ * and Rect, and with the clock and the log of a {@link Platform}. Scene puts the Android
+ * API on top of it; on a desktop JVM a {@link RegionDecoderScene} over tools/JvmPlatform
+ * runs the same engine headless, for load tests and profilers.
+ */
+public abstract class PortableScene {
+    private final String TAG = "Scene";
+
+    private final static int MINIMUM_PIXELS_IN_VIEW = 50;
+    /**
+     * Restores and trims the sample of every scene, one at a time and off the UI
+     * thread, since restoring decodes the whole image
+     */
+    private static final ExecutorService SAMPLE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "sampleThread");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    /**
+     * How far ahead, in milliseconds of the current pan velocity, the cache window leans
+     */
+    private final static int PREFETCH_LOOKAHEAD_MS = 400;
+    /**
+     * Origin updates further apart than this don't make a velocity
+     */
+    private final static int VELOCITY_TIMEOUT_MS = 100;
+
+    private final Platform platform;
+    /**
+     * The size of the Scene
+     */
+    private int sceneWidth = 0;
+    private int sceneHeight = 0;
+    /**
+     * The viewport
+     */
+    private final Viewport viewport = new Viewport();
+    /**
+     * How much memory the cache may use
+     */
+    private final MemoryBudget memoryBudget = new MemoryBudget(MemoryBudget.DEFAULT_PERCENT);
+    /**
+     * Counts the restores and trims of the sample asked for, see {@link #requestSample(boolean)}
+     */
+    private final AtomicInteger sampleRequest = new AtomicInteger();
+    /**
+     * Bitmaps evicted from the cache, for {@link #decodeTile} to decode into
+     */
+    private final BitmapPool bitmapPool = new BitmapPool(0);
+    /**
+     * The cache
+     */
+    private final Cache cache;
+    /**
+     * The threads decoding the tiles of the cache
+     */
+    private final DecodeEngine decodeEngine;
+    /**
+     * What the scene did, for whoever wants to know
+     */
+    private final SceneMetrics metrics;
+    /**
+     * Who to tell that what {@link #drawFrame()} draws has changed
+     */
+    private volatile OnChangeListener onChangeListener;
+    /**
+     * Where the calls that move the viewport are recorded, or null
+     */
+    private volatile GestureTrace gestureTrace;
+    /**
+     * Whether the last frame drawn had to show the sample somewhere
+     */
+    private volatile boolean lastFrameSampleFallback = false;
+
+    /**
+     * Told when the scene looks different than when it was last drawn
+     */
+    public interface OnChangeListener {
+        /**
+         * The viewport moved, or tiles were decoded or dropped. Called from any
+         * thread, often with scene locks held, so it must not block or draw.
+         */
+        void onSceneChanged();
+    }
+
+    /**
+     * @param decodeThreads How many tiles {@link #decodeTile} may be asked
+     *                      to decode at the same time
+     */
+    protected PortableScene(Platform platform, int decodeThreads) {
+        this.platform = platform;
+        metrics = new SceneMetrics(cacheStateNames(), platform);
+        cache = new Cache();
+        decodeEngine = new DecodeEngine(cache, platform, decodeThreads);
+    }
+
+    public Platform getPlatform() {
+        return platform;
+    }
+
+    //region [gs]etSceneSize
+
+    /**
+     * 设置窗口的尺寸
+     * Set the size of the scene
+     */
+    public void setSceneSize(int width, int height) {
+        sceneWidth = width;
+        sceneHeight = height;
+    }
+
+    public int getSceneWidth() {
+        return sceneWidth;
+    }
+
+    public int getSceneHeight() {
+        return sceneHeight;
+    }
+    //endregion
+
+    //region getViewport()
+    public Viewport getViewport() {
+        return viewport;
+    }
+    //endregion
+
+    //region getMetrics()
+
+    /**
+     * Decode latency, sample fallbacks, time per cache state, bytes decoded and
+     * frame times. Off until {@link SceneMetrics#setEnabled(boolean)}.
+     */
+    public SceneMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static String[] cacheStateNames() {
+        CacheState[] states = CacheState.values();
+        String[] names = new String[states.length];
+        for (int i = 0; i < states.length; i++)
+            names[i] = states[i].name();
+        return names;
+    }
+    //endregion
+
+    //region OnChangeListener
+
+    /**
+     * Draw only when this tells so, rather than drawing over and over
+     */
+    public void setOnChangeListener(OnChangeListener listener) {
+        onChangeListener = listener;
+    }
+
+    /**
+     * What {@link #drawFrame()} draws has changed, e.g. because the sample was replaced
+     */
+    protected void notifyChanged() {
+        OnChangeListener listener = onChangeListener;
+        if (listener != null)
+            listener.onSceneChanged();
+    }
+    //endregion
+
+    //region GestureTrace
+
+    /**
+     * Record every call that moves the viewport into the trace, until it is set to null.
+     * The trace starts with where the viewport is now, as the calls that bring a new
+     * viewport there. See {@link GestureReplayer} to play them back.
+     */
+    public void setGestureTrace(GestureTrace trace) {
+        if (trace != null) {
+            ViewportState s = viewport.getState(new ViewportState());
+            trace.record(GestureTrace.Type.SIZE, s.physicalWidth, s.physicalHeight, 0);
+            if (s.zoom != 1.0f)
+                trace.record(GestureTrace.Type.ZOOM, s.zoom, 0, 0);
+            trace.record(GestureTrace.Type.ORIGIN, s.left, s.top, 0);
+        }
+        gestureTrace = trace;
+    }
+
+    public GestureTrace getGestureTrace() {
+        return gestureTrace;
+    }
+
+    private void record(GestureTrace.Type type, float a, float b, float c) {
+        GestureTrace trace = gestureTrace;
+        if (trace != null)
+            trace.record(type, a, b, c);
+    }
+    //endregion
+
+    //region initialize/start/stop/suspend/invalidate the cache
+
+    /**
+     * Initializes the cache
+     */
+    public void initialize() {
+        cache.compareAndSetCacheState(CacheState.UNINITIALIZED, CacheState.INITIALIZED);
+    }
+
+    /**
+     * Starts the cache and decode threads, with the whole memory budget back
+     * if it was trimmed while the scene was stopped. A trimmed sample comes back
+     * in the background; the tiles show meanwhile.
+     */
+    public void start() {
+        memoryBudget.restore();
+        warmSample();
+        applyMemoryBudget();
+        decodeEngine.start();
+        cache.start();
+        // A trim while stopped may have sent the cache back to fill again
+        notifyChanged();
+    }
+
+    /**
+     * Stops the cache and decode threads
+     */
+    public void stop() {
+        cache.stop();
+        decodeEngine.stop();
+    }
+
+    /**
+     * Suspends or unsuspends the cache thread. This can be
+     * used to temporarily stop the cache from updating.
+     * A fling should rather use {@link #startFling(int, int)}.
+     *
+     * @param suspend True to suspend the cache. False to unsuspend.
+     */
+    public void setSuspend(boolean suspend) {
+        if (suspend) {
+            cache.setCacheState(CacheState.SUSPEND);
+        } else if (cache.compareAndSetCacheState(CacheState.SUSPEND, CacheState.INITIALIZED)) {
+            notifyChanged();
+        }
+    }
+
+    /**
+     * Set how many bytes of decoded tiles the cache may keep. The least recently
+     * used tiles are dropped when the cache grows over this. On top of that a
+     * quarter of it is kept in the bitmap pool, enough for the rows and columns
+     * of tiles that panning brings into the cache window.
+     */
+    protected void setCacheBudget(long bytes) {
+        synchronized (cache) {
+            cache.tiles.setBudget(bytes);
+            bitmapPool.setMaxBytes(bytes / 4);
+        }
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Called by a {@link SceneCacheManager} with the scene's share of its budget,
+     * or -1 once the scene leaves the manager
+     */
+    void setSharedCacheBytes(long bytes) {
+        memoryBudget.setSharedBytes(bytes);
+        applyMemoryBudget();
+    }
+
+    /**
+     * Give memory back, see {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        memoryBudget.onTrimMemory(level);
+        applyMemoryBudget();
+        if (memoryBudget.isSampleTrimmed())
+            dropSample();
+    }
+
+    /**
+     * Resize the cache to the budget. If that evicted tiles of the cache window,
+     * the window is filled again on the next frame, since it still holds the
+     * viewport and nothing else would bring them back. So it is when the budget
+     * grows, e.g. a scene's share when it comes to the front, since the window is
+     * sized by the budget and the last one was filled for a smaller one.
+     */
+    private void applyMemoryBudget() {
+        boolean refill;
+        synchronized (cache) {
+            long bytes = memoryBudget.getCacheBytes();
+            boolean grown = bytes > cache.tiles.getBudget();
+            int evictions = cache.windowEvictions;
+            setCacheBudget(bytes);
+            cache.recordUsage();
+            refill = grown || cache.windowEvictions != evictions;
+        }
+        if (refill)
+            cache.refill();
+    }
+
+    /**
+     * Bring the sample back with {@link #restoreSample()} on the sample thread
+     */
+    void warmSample() {
+        requestSample(true);
+    }
+
+    /**
+     * Let the sample go with {@link #trimSample()} on the sample thread, after any
+     * restore queued before, so that it isn't undone by one
+     */
+    void dropSample() {
+        requestSample(false);
+    }
+
+    /**
+     * Queue a restore or a trim. Only the latest request of the scene runs, the
+     * ones still queued before it are stale by then and dropped.
+     */
+    private void requestSample(final boolean restore) {
+        final int request = sampleRequest.incrementAndGet();
+        SAMPLE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request != sampleRequest.get())
+                    return;
+                if (restore)
+                    restoreSample();
+                else
+                    trimSample();
+            }
+        });
+    }
+
+    /**
+     * Let go of the sample, the system is short of memory and the scene isn't shown.
+     * It is asked back with {@link #restoreSample()} before the scene starts again.
+     * Called on the sample thread, while the scene may still be drawing.
+     */
+    protected void trimSample() {
+    }
+
+    /**
+     * Bring back the sample after {@link #trimSample()}. Called on the sample thread,
+     * while the scene may be drawing without it.
+     */
+    protected void restoreSample() {
+    }
+
+    /**
+     * Take pixels the cache no longer uses, to decode into
+     *
+     * @param format see {@link Pixels#getFormat()}
+     * @return reusable pixels of exactly this size and format, or null if there are none
+     */
+    protected Pixels obtainPixels(int width, int height, int format) {
+        return bitmapPool.get(width, height, format);
+    }
+
+    /**
+     * Give back pixels from {@link #obtainPixels} that ended up unused
+     */
+    protected void releasePixels(Pixels pixels) {
+        bitmapPool.put(pixels);
+    }
+
+    /**
+     * @return the share of tile decodes that reused a pooled bitmap, 0..1
+     */
+    public float getBitmapPoolHitRate() {
+        return bitmapPool.getHitRate();
+    }
+
+    /**
+     * @return how many tiles are waiting to be decoded or being decoded right now
+     */
+    public int getDecodeBacklog() {
+        return decodeEngine.getBacklog();
+    }
+
+    /**
+     * Tell the cache a fling started that will stop with the viewport at this origin.
+     * Until {@link #endFling()} the cache fills the window around the landing
+     * viewport instead of following the viewport as it flies by.
+     */
+    public void startFling(int finalX, int finalY) {
+        record(GestureTrace.Type.FLING, finalX, finalY, 0);
+        ViewportState viewportState = viewport.getState(new ViewportState());
+        int w = viewportState.width();
+        int h = viewportState.height();
+        int x = Math.max(0, Math.min(finalX, sceneWidth - w));
+        int y = Math.max(0, Math.min(finalY, sceneHeight - h));
+        synchronized (cache) {
+            cache.flingTargetRect.set(x, y, x + w, y + h);
+            cache.flinging = true;
+            while (true) {
+                CacheState current = cache.getCacheState();
+                if (current == CacheState.UNINITIALIZED)
+                    break;
+                if (cache.compareAndSetCacheState(current,
+                        current == CacheState.SUSPEND ? CacheState.INITIALIZED : CacheState.START_UPDATE))
+                    break;
+            }
+            cache.updates.request();
+        }
+    }
+
+    /**
+     * The fling is over, either it stopped or the user touched down. The cache goes
+     * back to following the viewport, and the landing is counted as cached if every
+     * visible tile was resident.
+     */
+    public void endFling() {
+        record(GestureTrace.Type.FLING_END, 0, 0, 0);
+        synchronized (cache) {
+            if (!cache.flinging)
+                return;
+            cache.flinging = false;
+            flingLandings++;
+            ViewportState viewportState = viewport.getState(new ViewportState());
+            SceneGeometry.Box viewportRect = new SceneGeometry.Box();
+            viewportState.getRect(viewportRect);
+            if (cache.hasTiles(viewportRect, cache.levelFor(viewportState.zoom, viewportRect)))
+                flingLandingsCached++;
+            if (platform.isVerbose())
+                platform.debug(TAG, String.format("fling landed cached %d of %d", flingLandingsCached, flingLandings));
+        }
+        // Draw again so the cache catches up with where the viewport is
+        notifyChanged();
+    }
+
+    private int flingLandings = 0;
+    private int flingLandingsCached = 0;
+
+    /**
+     * @return how many flings ended, see {@link #endFling()}
+     */
+    public int getFlingLandings() {
+        return flingLandings;
+    }
+
+    /**
+     * @return how many flings ended on a viewport that was already fully cached
+     */
+    public int getFlingLandingsCached() {
+        return flingLandingsCached;
+    }
+
+    /**
+     * Invalidate the cache. This causes it to refill
+     */
+    @SuppressWarnings("unused")
+    public void invalidate() {
+        cache.invalidate();
+    }
+    //endregion
+
+    //region Pixels drawFrame()
+
+    /**
+     * Draw the viewport's part of the scene into the frame. The high resolution tiles
+     * the cache already has are used. Where a tile is not available, the lower
+     * resolution bitmap from the sample shows through. Called on one draw thread only.
+     *
+     * @return the frame, owned by the scene and drawn over by the next call, or null
+     * while the viewport has no size
+     */
+    public Pixels drawFrame() {
+        return viewport.draw();
+    }
+
+    /**
+     * @return whether the sample showed through somewhere in the last frame drawn,
+     * because tiles of the viewport were still missing
+     */
+    public boolean isLastFrameSampleFallback() {
+        return lastFrameSampleFallback;
+    }
+    //endregion
+
+    //region protected abstract
+
+    /**
+     * This method must return the pixels of one tile that the Scene
+     * will use to fill out the viewport frame upon request. The cache
+     * asks for every tile around the viewport so that the viewport can be
+     * scrolled without having to decode again. This method runs
+     * on a thread other than the UI thread, and it is not under a lock, so
+     * it is expected that this method can take a while. It is called from
+     * several decode threads at once, see {@link #PortableScene(Platform, int)}.
+     * Decoding into pixels from {@link #obtainPixels} saves allocating new memory.
+     * A decode that takes long can stop early once {@link #isFillCancelled()}.
+     *
+     * @param rectOfCache The area of the Scene that the Scene wants cached.
+     * @param sampleSize  The area must be downsampled by this power of two
+     * @return the pixels of the requested area of the larger image, or null
+     */
+    protected abstract Pixels decodeTile(SceneGeometry.Box rectOfCache, int sampleSize);
+
+    /**
+     * Whether the tile {@link #decodeTile} is decoding is no longer wanted,
+     * because the viewport moved on since. A long decode done in parts should check
+     * this between them and return null when it turns true.
+     */
+    protected boolean isFillCancelled() {
+        return DecodeEngine.isCancelled();
+    }
+
+    /**
+     * The memory allocation you just did in decodeTile caused an OutOfMemoryError.
+     * You can attempt to recover, e.g. with {@link MemoryBudget#onOutOfMemory()}.
+     * The budget is applied again afterwards. Experience shows that when we get an
+     * OutOfMemoryError, we're pretty hosed and are going down. For instance, if
+     * we're trying to decode a bitmap region with
+     * {@link android.graphics.BitmapRegionDecoder} and we run out of memory,
+     * we're going to die somewhere in the C code with a SIGSEGV.
+     *
+     * @param error The OutOfMemoryError exception data
+     */
+    protected abstract void fillCacheOutOfMemoryError(OutOfMemoryError error);
+
+    /**
+     * Calculate the cache's window based on the current viewportRect.
+     * The returned box must at least contain the viewportRect, but it can be
+     * larger if the system believes pixels of the returned size will fit into
+     * memory. The margins should lean toward where the viewport is heading.
+     * This function must be fast as it happens while the cache lock is held.
+     *
+     * @param viewportRect The returned must be able to contain this box
+     * @param sampleSize   The window will be decoded downsampled by this, so a
+     *                     scene pixel costs 1/sampleSize^2 of a decoded one
+     * @param leadX        How far the viewport is expected to move horizontally soon,
+     *                     in scene pixels
+     * @param leadY        How far the viewport is expected to move vertically soon
+     * @return The box that will be used to fill the cache
+     */
+    protected abstract SceneGeometry.Box calculateWindow(SceneGeometry.Box viewportRect, int sampleSize,
+                                                         int leadX, int leadY);
+
+    /**
+     * 该方法用于填充传入的样本数据
+     * 用户体验质量依赖于该功能的速度
+     * This method fills the passed-in frame with sample data. This function must
+     * return as fast as possible so it shouldn't have to do any IO at all -- the
+     * quality of the user experience rests on the speed of this function.
+     *
+     * @param frame        The pixels to fill
+     * @param rectOfSample Rectangle within the Scene that the frame represents.
+     */
+    protected abstract void drawSample(Pixels frame, SceneGeometry.Box rectOfSample);
+    //endregion
+
+    //region class ViewportState
+
+    /**
+     * 视图状态
+     * Where the viewport is and how far it is zoomed, at one moment. Callers keep their
+     * own state and let {@link Viewport#getState(ViewportState)} copy the viewport's
+     * into it, so reading it allocates nothing; the origin, size and zoom copied belong
+     * together. The fields are only written by the viewport.
+     */
+    public static final class ViewportState {
+        /**
+         * 一个用于在场景中定义图像的矩形
+         * The Rect that defines where the Viewport is within the scene
+         */
+        public volatile int left;
+        public volatile int top;
+        public volatile int right;
+        public volatile int bottom;
+        /**
+         * The size of the screen it is drawn on
+         */
+        public volatile int physicalWidth;
+        public volatile int physicalHeight;
+        public volatile float zoom = 1.0f;//数字越小图片越模糊,放大.反之缩小
+        /**
+         * Smoothed pan velocity in scene pixels per millisecond, and when the origin was set
+         */
+        volatile float velocityX;
+        volatile float velocityY;
+        volatile long originTime;
+
+        void set(ViewportState other) {
+            left = other.left;
+            top = other.top;
+            right = other.right;
+            bottom = other.bottom;
+            physicalWidth = other.physicalWidth;
+            physicalHeight = other.physicalHeight;
+            zoom = other.zoom;
+            velocityX = other.velocityX;
+            velocityY = other.velocityY;
+            originTime = other.originTime;
+        }
+
+        public int width() {
+            return right - left;
+        }
+
+        public int height() {
+            return bottom - top;
+        }
+
+        public void getRect(SceneGeometry.Box out) {
+            out.set(left, top, right, bottom);
+        }
+    }
+    //endregion
+
+    //region class Viewport
+
+    /**
+     * 视图
+     * The viewport's state is changed in place under a version: even while it holds
+     * still, odd while a gesture changes it. A gesture takes it from even to odd by
+     * compare-and-set, so gestures take turns; a reader copies the state and copies
+     * again if the version moved meanwhile. Gestures never wait for a draw, a draw
+     * never waits for a gesture, and neither allocates.
+     */
+    public class Viewport {
+        private final ViewportState state = new ViewportState();
+        private final AtomicInteger version = new AtomicInteger();
+        /**
+         * Scratch space for {@link #zoom}, only used while the version is odd
+         */
+        private final SceneGeometry.Box zoomBox = new SceneGeometry.Box();
+        /**
+         * The frame of the current viewport, and the state it is drawn from. Only the
+         * draw thread touches them.
+         */
+        private Pixels currentViewportFrame = null;
+        private final ViewportState drawState = new ViewportState();
+
+        /**
+         * Copy what the viewport shows right now
+         *
+         * @return out
+         */
+        public ViewportState getState(ViewportState out) {
+            while (true) {
+                int v = beginRead();
+                out.set(state);
+                if (version.get() == v)
+                    return out;
+            }
+        }
+
+        /**
+         * @return the even version the state is at, once no gesture is changing it
+         */
+        private int beginRead() {
+            int v;
+            while (((v = version.get()) & 1) != 0)
+                Thread.yield();
+            return v;
+        }
+
+        private void beginWrite() {
+            int v;
+            while (((v = version.get()) & 1) != 0 || !version.compareAndSet(v, v + 1))
+                Thread.yield();
+        }
+
+        private void endWrite() {
+            version.incrementAndGet();
+        }
+
+        public void setOrigin(int x, int y) {
+            record(GestureTrace.Type.ORIGIN, x, y, 0);
+            boolean moved;
+            beginWrite();
+            try {
+                long now = platform.uptimeMillis();
+                long dt = now - state.originTime;
+                int w = state.width();
+                int h = state.height();
+
+                // check bounds
+                int newX = SceneGeometry.clampOrigin(x, w, sceneWidth);
+                int newY = SceneGeometry.clampOrigin(y, h, sceneHeight);
+
+                float velocityX = 0f;
+                float velocityY = 0f;
+                if (dt > 0 && dt < VELOCITY_TIMEOUT_MS) {
+                    velocityX = (state.velocityX + (float) (newX - state.left) / dt) / 2;
+                    velocityY = (state.velocityY + (float) (newY - state.top) / dt) / 2;
+                }
+                moved = newX != state.left || newY != state.top;
+                state.left = newX;
+                state.top = newY;
+                state.right = newX + w;
+                state.bottom = newY + h;
+                state.velocityX = velocityX;
+                state.velocityY = velocityY;
+                state.originTime = now;
+            } finally {
+                endWrite();
+            }
+            if (moved)
+                notifyChanged();
+        }
+
+        /**
+         * Set lead to the distance the viewport moves in the given time at its current
+         * pan velocity, x then y, or 0 if it hasn't moved lately.
+         */
+        void getLead(int millis, int[] lead) {
+            float velocityX;
+            float velocityY;
+            long originTime;
+            int v;
+            do {
+                v = beginRead();
+                velocityX = state.velocityX;
+                velocityY = state.velocityY;
+                originTime = state.originTime;
+            } while (version.get() != v);
+            if (platform.uptimeMillis() - originTime >= VELOCITY_TIMEOUT_MS) {
+                lead[0] = 0;
+                lead[1] = 0;
+            } else {
+                lead[0] = (int) (velocityX * millis);
+                lead[1] = (int) (velocityY * millis);
+            }
+        }
+
+        /**
+         * Set the size of the screen. The draw thread makes a frame of that size
+         * the next time it draws.
+         */
+        public void setViewportSize(int w, int h) {
+            record(GestureTrace.Type.SIZE, w, h, 0);
+            beginWrite();
+            try {
+                state.right = state.left + w;
+                state.bottom = state.top + h;
+                state.physicalWidth = w;
+                state.physicalHeight = h;
+            } finally {
+                endWrite();
+            }
+            notifyChanged();
+        }
+
+        public int getPhysicalWidth() {
+            return state.physicalWidth;
+        }
+
+        public int getPhysicalHeight() {
+            return state.physicalHeight;
+        }
+
+        public float getZoom() {
+            return state.zoom;
+        }
+
+        /**
+         * @param factor 缩放比例
+         * @param focusX 触摸位置 相对于手机屏幕的坐标
+         * @param focusY 触摸位置 相对于手机屏幕的坐标
+         */
+        public void zoom(float factor, float focusX, float focusY) {
+            if (factor != 1.0) {
+                record(GestureTrace.Type.ZOOM, factor, focusX, focusY);
+                int oldLeft;
+                int oldTop;
+                int oldRight;
+                int oldBottom;
+                float newZoom;
+                beginWrite();
+                try {
+                    SceneGeometry.Box box = zoomBox;
+                    oldLeft = state.left;
+                    oldTop = state.top;
+                    oldRight = state.right;
+                    oldBottom = state.bottom;
+                    box.set(oldLeft, oldTop, oldRight, oldBottom);
+                    newZoom = SceneGeometry.zoom(box, state.physicalWidth, state.physicalHeight, state.zoom, factor,
+                            focusX, focusY, sceneWidth, sceneHeight, MINIMUM_PIXELS_IN_VIEW, box);
+                    state.left = box.left;
+                    state.top = box.top;
+                    state.right = box.right;
+                    state.bottom = box.bottom;
+                    state.zoom = newZoom;
+                } finally {
+                    endWrite();
+                }
+                if (platform.isVerbose()) {
+                    ViewportState next = getState(new ViewportState());
+                    platform.debug(TAG, String.format(
+                            "f=%.2f, z=%.2f, screenFocus触摸位置相对于手机屏幕对应的焦点坐标(%.0f,%.0f), w1原位置坐标(%d,%d,%d,%d) w2更新位置坐标(%d,%d,%d,%d)",
+                            factor,
+                            newZoom,
+                            focusX,
+                            focusY,
+                            oldLeft, oldTop, oldRight, oldBottom,
+                            next.left, next.top, next.right, next.bottom
+                    ));
+                }
+                notifyChanged();
+            }
+        }
+
+        /**
+         * Draw the latest state. Called on the draw thread only, which owns the frame.
+         */
+        Pixels draw() {
+            long start = System.nanoTime();
+            ViewportState s = getState(drawState);
+            Pixels frame = currentViewportFrame;
+            if (frame == null || frame.getWidth() != s.physicalWidth || frame.getHeight() != s.physicalHeight) {
+                if (frame != null)
+                    frame.recycle();
+                frame = s.physicalWidth > 0 && s.physicalHeight > 0
+                        ? platform.createPixels(s.physicalWidth, s.physicalHeight)
+                        : null;
+                currentViewportFrame = frame;
+            }
+            if (frame == null)
+                return null;
+            boolean sampleFallback = cache.update(s, frame);
+            lastFrameSampleFallback = sampleFallback;
+            metrics.onFrame((System.nanoTime() - start) / 1000, sampleFallback);
+            return frame;
+        }
+    }
+    //endregion
+
+    //region class Cache
+
+    private enum CacheState {UNINITIALIZED, INITIALIZED, START_UPDATE, IN_UPDATE, READY, SUSPEND}
+
+    /**
+     * 跟踪缓存的瓦片
+     * Keep track of the cached tiles
+     */
+    private class Cache implements DecodeEngine.Client, TileCache.OnEvictListener {
+        /**
+         * 定义了场景内的缓存的矩形
+         * A Rect that defines where the Cache is within the scene
+         */
+        final SceneGeometry.Box windowCacheRect = new SceneGeometry.Box();
+        /**
+         * The pyramid level the cache window is filled at
+         */
+        int cacheLevel = 0;
+        /**
+         * The decode batch filling the cache window
+         */
+        int cacheBatch = 0;
+        /**
+         * The last cache window whose fill completed, and its level. Every tile that
+         * intersects it is resident, so a new window only has to fill the strips
+         * around it.
+         */
+        final SceneGeometry.Box completeCacheRect = new SceneGeometry.Box();
+        int completeLevel = 0;
+        /**
+         * Tiles of the cache window evicted since its fill started. Each leaves a
+         * hole that a READY cache would never fill while the viewport stays inside
+         * the window.
+         */
+        int windowEvictions = 0;
+        /**
+         * While flinging the window is filled around where the viewport will land
+         */
+        boolean flinging = false;
+        final SceneGeometry.Box flingTargetRect = new SceneGeometry.Box();
+        /**
+         * The decoded tiles of every level
+         */
+        final TileCache tiles = new TileCache(bitmapPool, this);
+        final AtomicReference<CacheState> state = new AtomicReference<CacheState>(CacheState.UNINITIALIZED);
+        /**
+         * Where the viewport was when it was last drawn. Only used by update().
+         */
+        final SceneGeometry.Box drawViewportRect = new SceneGeometry.Box();
+
+        void setCacheState(CacheState newState) {
+            CacheState old = state.getAndSet(newState);
+            metrics.onState(newState.ordinal());
+            if (platform.isVerbose())
+                platform.debug("bollin", String.format("cacheState old=%s new=%s", old.toString(), newState.toString()));
+        }
+
+        /**
+         * Move from one state to another, unless another thread moved it first
+         *
+         * @return whether the state was expect and is now update
+         */
+        boolean compareAndSetCacheState(CacheState expect, CacheState update) {
+            if (!state.compareAndSet(expect, update))
+                return false;
+            metrics.onState(update.ordinal());
+            if (platform.isVerbose())
+                platform.debug("bollin", String.format("cacheState old=%s new=%s", expect.toString(), update.toString()));
+            return true;
+        }
+
+        CacheState getCacheState() {
+            return state.get();
+        }
+
+        /**
+         * Our load from disk thread
+         */
+        CacheThread cacheThread;
+        /**
+         * Wakes the cache thread when the state goes to {@link CacheState#START_UPDATE}
+         */
+        final UpdateQueue updates = new UpdateQueue();
+
+        void start() {
+            if (cacheThread != null)
+                stop();
+            synchronized (this) {
+                // A fill that stop() cut short never ends, the decode engine dropped its queue
+                CacheState current = getCacheState();
+                if (current == CacheState.START_UPDATE || current == CacheState.IN_UPDATE)
+                    compareAndSetCacheState(current, CacheState.INITIALIZED);
+            }
+            updates.open();
+            cacheThread = new CacheThread(this);
+            cacheThread.setName("cacheThread");
+            cacheThread.start();
+        }
+
+        void stop() {
+            updates.close();
+
+            boolean retry = true;
+            while (retry) {
+                try {
+                    cacheThread.join();
+                    retry = false;
+                } catch (InterruptedException e) {
+                    // we will try it again and again...
+                }
+            }
+            cacheThread = null;
+        }
+
+        void invalidate() {
+            synchronized (this) {
+                tiles.clear();
+                completeCacheRect.setEmpty();
+                setCacheState(CacheState.INITIALIZED);
+                updates.request();
+            }
+            notifyChanged();
+        }
+
+        /**
+         * Fill the window again on the next frame, keeping the resident tiles, after
+         * some of it was evicted
+         */
+        void refill() {
+            synchronized (this) {
+                completeCacheRect.setEmpty();
+                CacheState current = getCacheState();
+                if (current == CacheState.START_UPDATE || current == CacheState.IN_UPDATE
+                        || current == CacheState.READY)
+                    compareAndSetCacheState(current, CacheState.INITIALIZED);
+            }
+            notifyChanged();
+        }
+
+        /**
+         * Fill the frame with the part of the scene referenced by the viewport state
+         *
+         * @return whether the sample had to show where tiles are missing
+         */
+        boolean update(ViewportState viewportState, Pixels viewportFrame) {
+            synchronized (this) {
+                SceneGeometry.Box viewportRect = drawViewportRect;
+                viewportState.getRect(viewportRect);
+                int level = levelFor(viewportState.zoom, viewportRect);
+                CacheState current = getCacheState();
+                switch (current) {
+                    case UNINITIALIZED:
+                        // nothing can be done -- should never get here
+                        return true;
+                    case INITIALIZED:
+                        // time to cache some data
+                        if (compareAndSetCacheState(current, CacheState.START_UPDATE))
+                            updates.request();
+                        break;
+                    case START_UPDATE:
+                        // I already told the thread to start
+                        break;
+                    case IN_UPDATE:
+                        // Already reading some tiles, restart if they are no longer the right ones
+                    case READY:
+                        // I have some data to show
+                        if (flinging)
+                            // The window is around the landing viewport, not this one
+                            break;
+                        if (level != cacheLevel || !windowCacheRect.contains(viewportRect)
+                                // Evicted since the fill, decode what is missing again
+                                || (current == CacheState.READY && windowEvictions > 0
+                                && !hasTiles(viewportRect, level))) {
+                            if (platform.isVerbose())
+                                platform.debug(TAG, "viewport not in cache");
+                            if (compareAndSetCacheState(current, CacheState.START_UPDATE))
+                                updates.request();
+                        }
+                        break;
+                    case SUSPEND:
+                        // Loading from cache suspended, but the resident tiles can still be shown.
+                        break;
+                }
+                return loadTilesIntoViewport(viewportRect, viewportFrame, level);
+            }
+        }
+
+        /**
+         * The level to show the viewport at. That is the level of its zoom, except
+         * right after zooming out by one level: if the finer tiles of the cache
+         * still cover the viewport, they are kept rather than decoding coarser ones.
+         * Only zooming in past the cache's level, or leaving its window, needs a
+         * new fill.
+         */
+        int levelFor(float zoom, SceneGeometry.Box viewportRect) {
+            int level = TileCache.levelForZoom(zoom);
+            CacheState current = getCacheState();
+            if (level == cacheLevel + 1
+                    && (current == CacheState.READY || current == CacheState.IN_UPDATE)
+                    && windowCacheRect.contains(viewportRect)
+                    && hasTiles(viewportRect, cacheLevel))
+                return cacheLevel;
+            return level;
+        }
+
+        /**
+         * Whether every tile of the level that intersects area is resident
+         */
+        boolean hasTiles(SceneGeometry.Box area, int level) {
+            if (area.isEmpty())
+                return false;
+            int span = TileCache.TILE_SIZE << level;
+            for (int row = area.top / span; row <= (area.bottom - 1) / span; row++)
+                for (int col = area.left / span; col <= (area.right - 1) / span; col++)
+                    if (!tiles.contains(level, col, row))
+                        return false;
+            return true;
+        }
+
+        final PixelCanvas viewportCanvas = platform.createCanvas();
+        final SceneGeometry.Box dstRect = new SceneGeometry.Box();
+
+        /**
+         * Composite the resident tiles of the level over the viewport frame. If any
+         * visible tile is missing, the sample and then the coarser tiles that are
+         * still resident, e.g. from before zooming in, are drawn underneath first.
+         * Must be called with the cache lock held, so tiles can't be evicted while
+         * they're drawn.
+         *
+         * @return whether the sample was drawn
+         */
+        boolean loadTilesIntoViewport(SceneGeometry.Box viewportRect, Pixels viewportFrame, int level) {
+            if (viewportRect.isEmpty())
+                return false;
+            viewportCanvas.setTarget(viewportFrame);
+            boolean sampleFallback = !hasTiles(viewportRect, level);
+            if (sampleFallback) {
+                loadSampleIntoViewport(viewportRect, viewportFrame);
+                for (int coarser = Math.min(level + FALLBACK_LEVELS, TileCache.MAX_LEVEL); coarser > level; coarser--)
+                    drawTiles(viewportRect, viewportFrame, coarser);
+            }
+            drawTiles(viewportRect, viewportFrame, level);
+            return sampleFallback;
+        }
+
+        /**
+         * How many coarser levels can show through while the tiles of a finer one decode
+         */
+        static final int FALLBACK_LEVELS = 2;
+
+        private void drawTiles(SceneGeometry.Box viewportRect, Pixels viewportFrame, int level) {
+            int span = TileCache.TILE_SIZE << level;
+            int firstCol = viewportRect.left / span;
+            int lastCol = (viewportRect.right - 1) / span;
+            int firstRow = viewportRect.top / span;
+            int lastRow = (viewportRect.bottom - 1) / span;
+            float scaleX = (float) viewportFrame.getWidth() / viewportRect.width();
+            float scaleY = (float) viewportFrame.getHeight() / viewportRect.height();
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    TileCache.Tile tile = tiles.get(level, col, row);
+                    if (tile == null)
+                        continue;
+                    // Neighbouring tiles share edges, so rounding each edge the same way leaves no seams
+                    SceneGeometry.Box sceneRect = tile.sceneRect;
+                    dstRect.set(
+                            Math.round((sceneRect.left - viewportRect.left) * scaleX),
+                            Math.round((sceneRect.top - viewportRect.top) * scaleY),
+                            Math.round((sceneRect.right - viewportRect.left) * scaleX),
+                            Math.round((sceneRect.bottom - viewportRect.top) * scaleY));
+                    viewportCanvas.drawPixels(tile.pixels, null, dstRect);
+                }
+            }
+        }
+
+        @Override
+        public boolean isWanted(DecodeEngine.Request request) {
+            synchronized (this) {
+                switch (getCacheState()) {
+                    case UNINITIALIZED:
+                    case SUSPEND:
+                        return false;
+                    default:
+                        // Scrolled off or zoomed away since it was queued
+                        return request.level == cacheLevel
+                                && SceneGeometry.Box.intersects(windowCacheRect, request.rect)
+                                && !tiles.contains(request.level, request.col, request.row);
+                }
+            }
+        }
+
+        @Override
+        public Pixels decode(DecodeEngine.Request request) {
+            long start = System.nanoTime();
+            Pixels pixels = decodeTile(request.rect, 1 << request.level);
+            if (pixels != null)
+                metrics.onDecoded((System.nanoTime() - start) / 1000, pixels.getByteCount());
+            return pixels;
+        }
+
+        @Override
+        public void onDecoded(DecodeEngine.Request request, Pixels pixels) {
+            synchronized (this) {
+                tiles.put(request.level, request.col, request.row, request.rect, pixels);
+                recordUsage();
+            }
+            notifyChanged();
+        }
+
+        @Override
+        public void onOutOfMemory(DecodeEngine.Request request, OutOfMemoryError error) {
+            /*
+             *  Attempt to recover. Experience shows that if we
+             *  do get an OutOfMemoryError, we're pretty hosed and are going down.
+             */
+            synchronized (this) {
+                fillCacheOutOfMemoryError(error);
+                applyMemoryBudget();
+                if (compareAndSetCacheState(CacheState.IN_UPDATE, CacheState.START_UPDATE))
+                    updates.request();
+            }
+        }
+
+        @Override
+        public void onBatchDone(int batch, int decoded, int dropped, long millis) {
+            synchronized (this) {
+                if (batch == cacheBatch && compareAndSetCacheState(CacheState.IN_UPDATE, CacheState.READY)) {
+                    // A dropped tile leaves a hole, and so does one the budget evicted while
+                    // the fill went on, don't let the next fill skip over it
+                    if (dropped == 0 && windowEvictions == 0) {
+                        completeCacheRect.set(windowCacheRect);
+                        completeLevel = cacheLevel;
+                    } else {
+                        completeCacheRect.setEmpty();
+                    }
+                } else {
+                    platform.warn(TAG, String.format("fillCache batch %d superseded by %d", batch, cacheBatch));
+                }
+            }
+            metrics.onFillDone();
+            if (platform.isVerbose())
+                platform.debug(TAG, String.format("fillCache %d tiles (%d dropped) on %d threads in %dms, pool hit %.0f%%, "
+                                + "%d decodes cancelled wasting %dms, %d updates coalesced",
+                        decoded, dropped, decodeEngine.getThreadCount(), millis, bitmapPool.getHitRate() * 100,
+                        decodeEngine.getCancelledCount(), decodeEngine.getWastedMillis(),
+                        updates.getCoalescedCount()));
+        }
+
+        void recordUsage() {
+            memoryBudget.onUsage(tiles.getUsedBytes() + bitmapPool.getPooledBytes() + memoryBudget.getSampleBytes());
+        }
+
+        @Override
+        public void onEvicted(TileCache.Tile tile) {
+            memoryBudget.onEviction();
+            if (tile.level == cacheLevel && SceneGeometry.Box.intersects(windowCacheRect, tile.sceneRect))
+                windowEvictions++;
+            // A hole in the completed window, the next fill has to look at all of it
+            if (tile.level == completeLevel && SceneGeometry.Box.intersects(completeCacheRect, tile.sceneRect))
+                completeCacheRect.setEmpty();
+        }
+
+        void loadSampleIntoViewport(SceneGeometry.Box viewportRect, Pixels viewportFrame) {
+            if (getCacheState() != CacheState.UNINITIALIZED) {
+                drawSample(
+                        viewportFrame,
+                        viewportRect
+                );
+            }
+        }
+    }
+    //endregion
+
+    //region class CacheThread
+
+    /**
+     * <p>The CacheThread's job is to wait until the {@link Cache#state} is
+     * {@link CacheState#START_UPDATE} and then work out the cache window around
+     * the latest {@link ViewportState}. Every tile of the window
+     * that is not resident yet is handed to the {@link DecodeEngine} as one batch,
+     * the visible tiles first. When panning at the same level, only the strips of
+     * the window outside the {@link Cache#completeCacheRect} are looked at, so the
+     * work is proportional to the newly exposed area rather than to the window. The decoding itself happens on the engine's threads
+     * without the cache lock held, because {@link PortableScene#decodeTile} can
+     * take a long time. If we hold the lock, the user experience is very jumpy.</p>
+     * <p>The CacheThread and the {@link Cache} work hand in hand, both using the
+     * cache itself to synchronize on and using the {@link Cache#state}, which
+     * only ever moves by compare-and-set. The {@link Cache} is free to update any part of the cache object as long
+     * as it holds the lock. When the batch is done the cache moves to
+     * {@link CacheState#READY}, unless a new fill was asked for in the meantime.
+     * Tiles that were already decoded are kept either way.</p>
+     * <p>The thread is woken through the {@link Cache#updates} queue. Requests that
+     * pile up while it works merge into one, and starting a new batch cancels the
+     * decodes in flight that the new window doesn't want.</p>
+     */
+    class CacheThread extends Thread {
+        final Cache cache;
+
+        CacheThread(Cache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void run() {
+            SceneGeometry.Box viewportRect = new SceneGeometry.Box();
+            SceneGeometry.Box cacheRect = new SceneGeometry.Box();
+            SceneGeometry.Box completeRect = new SceneGeometry.Box();
+            SceneGeometry.Box tileRect = new SceneGeometry.Box();
+            int[] lead = new int[2];
+            ViewportState viewportState = new ViewportState();
+            while (true) {
+                // Wait until we have something to do. Requests made meanwhile come as one.
+                if (cache.updates.take() < 0)
+                    return;
+                if (cache.getCacheState() != CacheState.START_UPDATE)
+                    continue;
+                viewport.getState(viewportState);
+                viewportState.getRect(viewportRect);
+                // Decode at the coarsest level that still meets the screen's resolution
+                int level = TileCache.levelForZoom(viewportState.zoom);
+                viewport.getLead(PREFETCH_LOOKAHEAD_MS, lead);
+                int batch;
+                synchronized (cache) {
+                    if (!cache.compareAndSetCacheState(CacheState.START_UPDATE, CacheState.IN_UPDATE))
+                        continue;
+                    if (cache.flinging) {
+                        // Prefetch where the fling lands, the tiles it flies over are visible too briefly
+                        viewportRect.set(cache.flingTargetRect);
+                        lead[0] = 0;
+                        lead[1] = 0;
+                    }
+                    cache.windowCacheRect.set(calculateWindow(viewportRect, 1 << level, lead[0], lead[1]));
+                    cache.cacheLevel = level;
+                    cache.windowEvictions = 0;
+                    cache.cacheBatch = batch = decodeEngine.beginBatch();
+                    metrics.onFillStarted();
+                    cacheRect.set(cache.windowCacheRect);
+                    if (cache.completeLevel == level)
+                        completeRect.set(cache.completeCacheRect);
+                    else
+                        completeRect.setEmpty();
+                }
+                int centerX = viewportRect.centerX();
+                int centerY = viewportRect.centerY();
+                int span = TileCache.TILE_SIZE << level;
+                int lastCol = (cacheRect.right - 1) / span;
+                int lastRow = (cacheRect.bottom - 1) / span;
+                // The tiles of the completed window are resident, skip over them
+                int completeFirstCol = 0;
+                int completeLastCol = -1;
+                int completeFirstRow = 0;
+                int completeLastRow = -1;
+                if (!completeRect.isEmpty()) {
+                    completeFirstCol = completeRect.left / span;
+                    completeLastCol = (completeRect.right - 1) / span;
+                    completeFirstRow = completeRect.top / span;
+                    completeLastRow = (completeRect.bottom - 1) / span;
+                }
+                int submitted = 0;
+                for (int row = cacheRect.top / span; row <= lastRow; row++) {
+                    boolean completeRow = row >= completeFirstRow && row <= completeLastRow;
+                    for (int col = cacheRect.left / span; col <= lastCol; col++) {
+                        if (completeRow && col >= completeFirstCol && col <= completeLastCol) {
+                            col = completeLastCol;
+                            continue;
+                        }
+                        synchronized (cache) {
+                            if (cache.tiles.contains(level, col, row))
+                                continue;
+                        }
+                        TileCache.getTileRect(level, col, row, sceneWidth, sceneHeight, tileRect);
+                        long dx = tileRect.centerX() - centerX;
+                        long dy = tileRect.centerY() - centerY;
+                        decodeEngine.submit(new DecodeEngine.Request(batch, level, col, row, tileRect,
+                                SceneGeometry.Box.intersects(viewportRect, tileRect), dx * dx + dy * dy));
+                        submitted++;
+                    }
+                }
+                if (platform.isVerbose())
+                    platform.debug(TAG, String.format("fillCache %s: %d tiles to decode in a window of %d",
+                            completeRect.isEmpty() ? "full" : "incremental", submitted,
+                            (lastCol - cacheRect.left / span + 1) * (lastRow - cacheRect.top / span + 1)));
+                decodeEngine.endBatch(batch);
+            }
+        }
+    }
+    //endregion
+}
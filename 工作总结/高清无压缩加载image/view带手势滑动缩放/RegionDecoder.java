@@ -0,0 +1,38 @@
+package com.bollin1206.superbigimage.view;
+
+import java.io.IOException;
+
+/**
+ * 区域解码器
+ * Decodes any rectangle of one encoded image, scaled down by a power of two, like
+ * BitmapRegionDecoder on Android or an ImageReader with a source region on a desktop JVM.
+ * A decoder decodes one region at a time; {@link RegionDecoderScene} opens one per
+ * decode thread from a {@link Source}.
+ */
+public interface RegionDecoder {
+    /**
+     * Where decoders of the same image come from
+     */
+    interface Source {
+        RegionDecoder open() throws IOException;
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @param region     the area of the image, within its bounds
+     * @param sampleSize decode every sampleSize-th pixel in each direction
+     * @param reuse      pixels to decode into if they fit, or null. Handed back as the
+     *                   result, or left to the caller otherwise, e.g. to give back to
+     *                   its pool; never recycled or kept.
+     * @return the pixels, about region / sampleSize big, or null if they can't be decoded
+     */
+    Pixels decodeRegion(SceneGeometry.Box region, int sampleSize, Pixels reuse);
+
+    /**
+     * Let go of the decoder, it can't decode anymore afterwards
+     */
+    void recycle();
+}
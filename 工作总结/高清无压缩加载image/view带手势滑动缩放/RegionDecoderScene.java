@@ -0,0 +1,207 @@
+package com.bollin1206.superbigimage.view;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 区域解码场景
+ * A scene of one image that a {@link RegionDecoder} decodes, on any {@link Platform}. It is
+ * the scene the engine runs headless on a desktop JVM, see tools/HeadlessSceneLoadTest;
+ * the app's {@link InputStreamScene} adds a disk cache, the restart index of JPEGs and
+ * opening in the background on top of the same idea.
+ */
+public class RegionDecoderScene extends PortableScene {
+    private static final String TAG = "RegionDecoderScene";
+    /**
+     * The sample is the image scaled down by a power of two to at most this many pixels
+     */
+    private static final int SAMPLE_PIXELS = 2 * 1024 * 1024;
+
+    private final RegionDecoder.Source source;
+    /**
+     * Idle decoders. A decoder decodes one region at a time, so there is one per
+     * decode thread, opened when needed.
+     */
+    private final BlockingQueue<RegionDecoder> regionDecoders;
+    private final int maxDecoders;
+    private int openDecoders;
+
+    private final int sampleShift;
+    private volatile Pixels sample;
+    /**
+     * The format of the decoded pixels, see {@link Pixels#getFormat()}, and their bytes per pixel
+     */
+    private final int format;
+    private final int bytesPerPixel;
+
+    private final PixelCanvas sampleCanvas;
+    private final SceneGeometry.Box sampleSrcRect = new SceneGeometry.Box();
+    private final SceneGeometry.Box sampleDstRect = new SceneGeometry.Box();
+    private final SceneGeometry.Box cacheWindowBox = new SceneGeometry.Box();
+
+    /**
+     * Opens the first decoder and decodes the sample right away
+     *
+     * @param decodeThreads How many tiles may be decoded at the same time
+     */
+    public RegionDecoderScene(Platform platform, RegionDecoder.Source source, int decodeThreads) throws IOException {
+        super(platform, decodeThreads);
+        getMetrics().onOpenStarted(platform.uptimeMillis());
+        this.source = source;
+        maxDecoders = Math.max(1, decodeThreads);
+        regionDecoders = new ArrayBlockingQueue<RegionDecoder>(maxDecoders);
+        sampleCanvas = platform.createCanvas();
+
+        RegionDecoder regionDecoder = source.open();
+        openDecoders = 1;
+        setSceneSize(regionDecoder.getWidth(), regionDecoder.getHeight());
+
+        int shift = 0;
+        while ((long) (regionDecoder.getWidth() >> shift) * (regionDecoder.getHeight() >> shift) > SAMPLE_PIXELS)
+            shift++;
+        sampleShift = shift;
+
+        Pixels sample = decodeSample(regionDecoder);
+        regionDecoders.add(regionDecoder);
+        if (sample == null) {
+            recycleDecoders();
+            throw new IOException("can't decode the sample of the image");
+        }
+        format = sample.getFormat();
+        bytesPerPixel = Math.max(1, sample.getByteCount() / (sample.getWidth() * sample.getHeight()));
+        setSample(sample);
+        initialize();
+    }
+
+    private Pixels decodeSample(RegionDecoder regionDecoder) {
+        SceneGeometry.Box all = new SceneGeometry.Box();
+        all.set(0, 0, getSceneWidth(), getSceneHeight());
+        return regionDecoder.decodeRegion(all, 1 << sampleShift, null);
+    }
+
+    private void setSample(Pixels sample) {
+        this.sample = sample;
+        getMemoryBudget().setSampleBytes(sample == null ? 0 : sample.getByteCount());
+        if (sample != null)
+            getMetrics().onContent();
+        notifyChanged();
+    }
+
+    @Override
+    protected void trimSample() {
+        setSample(null);
+    }
+
+    @Override
+    protected void restoreSample() {
+        if (sample != null)
+            return;
+        RegionDecoder regionDecoder = takeDecoder();
+        if (regionDecoder == null)
+            return;
+        try {
+            setSample(decodeSample(regionDecoder));
+        } finally {
+            regionDecoders.add(regionDecoder);
+        }
+    }
+
+    /**
+     * Let go of the sample and every decoder. Stop the scene first.
+     */
+    public void recycle() {
+        setSample(null);
+        recycleDecoders();
+    }
+
+    private void recycleDecoders() {
+        RegionDecoder regionDecoder;
+        while ((regionDecoder = regionDecoders.poll()) != null)
+            regionDecoder.recycle();
+    }
+
+    /**
+     * Take an idle decoder, opening a new one if all are busy and there are fewer
+     * than one per decode thread.
+     *
+     * @return the decoder, to be given back to {@link #regionDecoders}, or null if
+     * the thread was interrupted or the decoder couldn't be opened
+     */
+    private RegionDecoder takeDecoder() {
+        RegionDecoder regionDecoder = regionDecoders.poll();
+        if (regionDecoder != null)
+            return regionDecoder;
+        synchronized (regionDecoders) {
+            if (openDecoders < maxDecoders) {
+                try {
+                    regionDecoder = source.open();
+                    openDecoders++;
+                    return regionDecoder;
+                } catch (IOException e) {
+                    getPlatform().error(TAG, "can't open a decoder", e);
+                    return null;
+                }
+            }
+        }
+        try {
+            return regionDecoders.take();
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Pixels decodeTile(SceneGeometry.Box rectOfCache, int sampleSize) {
+        Pixels reuse = obtainPixels(
+                SceneGeometry.scaledSize(rectOfCache.width(), sampleSize),
+                SceneGeometry.scaledSize(rectOfCache.height(), sampleSize),
+                format);
+        RegionDecoder regionDecoder = takeDecoder();
+        if (regionDecoder == null) {
+            if (reuse != null)
+                releasePixels(reuse);
+            return null;
+        }
+        Pixels pixels;
+        try {
+            pixels = regionDecoder.decodeRegion(rectOfCache, sampleSize, reuse);
+        } finally {
+            regionDecoders.add(regionDecoder);
+        }
+        // The decoder didn't take them, give them back for another tile
+        if (reuse != null && pixels != reuse)
+            releasePixels(reuse);
+        return pixels;
+    }
+
+    @Override
+    protected void fillCacheOutOfMemoryError(OutOfMemoryError error) {
+        getMemoryBudget().onOutOfMemory();
+        getPlatform().error(TAG, String.format("caught oom -- cache now at %d percent.",
+                getMemoryBudget().getPercent()), error);
+    }
+
+    @Override
+    protected SceneGeometry.Box calculateWindow(SceneGeometry.Box viewportRect, int sampleSize,
+                                                int leadX, int leadY) {
+        double pixels = (double) getMemoryBudget().getWindowBytes() / bytesPerPixel;
+        SceneGeometry.cacheWindow(viewportRect, sampleSize, pixels, leadX, leadY,
+                getSceneWidth(), getSceneHeight(), cacheWindowBox);
+        return cacheWindowBox;
+    }
+
+    @Override
+    protected void drawSample(Pixels frame, SceneGeometry.Box rectOfSample) {
+        Pixels sample = this.sample;
+        if (frame == null || sample == null)
+            return;
+        int left = rectOfSample.left >> sampleShift;
+        int top = rectOfSample.top >> sampleShift;
+        sampleSrcRect.set(left, top,
+                left + (rectOfSample.width() >> sampleShift), top + (rectOfSample.height() >> sampleShift));
+        sampleDstRect.set(0, 0, frame.getWidth(), frame.getHeight());
+        sampleCanvas.setTarget(frame);
+        sampleCanvas.drawPixels(sample, sampleSrcRect, sampleDstRect);
+    }
+}
@@ -0,0 +1,197 @@
+package com.bollin1206.superbigimage.view;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按需绘制
+ * Renders on a thread of its own, once per vsync and only when something changed.
+ * Whoever changes what is on screen calls {@link #requestRender()}; requests that
+ * come in between two vsyncs make a single frame. When nothing changes the thread
+ * sleeps and no vsync is even asked for.
+ * <p>Animations run on the same vsync: every {@link Animator} is stepped once per
+ * frame, right before the frame is rendered, for as long as it says it is running.
+ * With no animation running no vsync is asked for.</p>
+ * <p>Frames are counted: the rendered ones, and the idle vsyncs that went by
+ * without a render, which a draw loop would have drawn anyway.</p>
+ */
+class RenderScheduler implements Choreographer.FrameCallback {
+    private static final String TAG = RenderScheduler.class.getSimpleName();
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    interface Renderer {
+        /**
+         * Draw a frame. Called on the render thread.
+         */
+        void render();
+    }
+
+    interface Animator {
+        /**
+         * Step the animation to the frame. Called on the render thread.
+         *
+         * @return whether to be called again on the next frame
+         */
+        boolean onAnimationFrame(long frameTimeNanos);
+    }
+
+    private final Renderer renderer;
+    private final String name;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    /**
+     * Whether a frame callback is posted or about to be
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable postFrame = new Runnable() {
+        @Override
+        public void run() {
+            choreographer.postFrameCallback(RenderScheduler.this);
+        }
+    };
+    private long frameIntervalNanos = NANOS_PER_SECOND / 60;
+    /**
+     * The running animations. Only the render thread touches it.
+     */
+    private final ArrayList<Animator> animators = new ArrayList<Animator>();
+    private HandlerThread thread;
+    private volatile Handler handler;
+    private Choreographer choreographer;
+
+    private long lastFrameNanos = 0;
+    private volatile long renderedFrames = 0;
+    private volatile long skippedFrames = 0;
+
+    RenderScheduler(String name, Renderer renderer) {
+        this.name = name;
+        this.renderer = renderer;
+    }
+
+    /**
+     * @param refreshRate frames per second of the display, to count the idle vsyncs by
+     */
+    void setRefreshRate(float refreshRate) {
+        if (refreshRate > 0)
+            frameIntervalNanos = (long) (NANOS_PER_SECOND / refreshRate);
+    }
+
+    synchronized void start() {
+        stop();
+        thread = new HandlerThread(name);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        // A Choreographer belongs to the looper of the thread that gets it
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                choreographer = Choreographer.getInstance();
+                lastFrameNanos = System.nanoTime();
+            }
+        });
+        scheduled.set(false);
+        requestRender();
+    }
+
+    /**
+     * Stop rendering. No frame is drawn anymore once this returns.
+     */
+    synchronized void stop() {
+        if (thread == null)
+            return;
+        thread.quit();
+        boolean retry = true;
+        while (retry) {
+            try {
+                thread.join();
+                retry = false;
+            } catch (InterruptedException e) {
+                // we will try it again and again...
+            }
+        }
+        countIdleFrames(System.nanoTime());
+        animators.clear();
+        thread = null;
+        handler = null;
+        choreographer = null;
+        if (Debug.isDebuggerConnected())
+            Log.d(TAG, String.format("%d frames rendered, %d idle frames skipped", renderedFrames, skippedFrames));
+    }
+
+    /**
+     * Something on screen changed, render it on the next vsync. Safe to call from
+     * any thread and with any lock held, it never blocks.
+     */
+    void requestRender() {
+        dirty.set(true);
+        Handler h = handler;
+        if (h != null && scheduled.compareAndSet(false, true))
+            h.post(postFrame);
+    }
+
+    /**
+     * Step the animator every frame from the next one on, until it says it is done.
+     * Does nothing while the scheduler is stopped.
+     */
+    void startAnimation(final Animator animator) {
+        Handler h = handler;
+        if (h == null)
+            return;
+        h.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!animators.contains(animator))
+                    animators.add(animator);
+                if (scheduled.compareAndSet(false, true))
+                    choreographer.postFrameCallback(RenderScheduler.this);
+            }
+        });
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Still counts as scheduled until the end, so changes made by the animators
+        // and the render don't post a frame of their own
+        countIdleFrames(frameTimeNanos);
+        for (int i = animators.size() - 1; i >= 0; i--) {
+            if (!animators.get(i).onAnimationFrame(frameTimeNanos))
+                animators.remove(i);
+        }
+        if (dirty.getAndSet(false)) {
+            renderer.render();
+            renderedFrames++;
+        } else {
+            skippedFrames++;
+        }
+        scheduled.set(false);
+        if ((!animators.isEmpty() || dirty.get()) && scheduled.compareAndSet(false, true))
+            choreographer.postFrameCallback(this);
+    }
+
+    /**
+     * Count the vsyncs since the last frame that nobody asked for
+     */
+    private void countIdleFrames(long frameTimeNanos) {
+        if (lastFrameNanos != 0 && frameTimeNanos > lastFrameNanos) {
+            long idle = (frameTimeNanos - lastFrameNanos + frameIntervalNanos / 2) / frameIntervalNanos - 1;
+            if (idle > 0)
+                skippedFrames += idle;
+        }
+        lastFrameNanos = frameTimeNanos;
+    }
+
+    long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    /**
+     * @return the vsyncs that went by without anything to render
+     */
+    long getSkippedFrames() {
+        return skippedFrames;
+    }
+}
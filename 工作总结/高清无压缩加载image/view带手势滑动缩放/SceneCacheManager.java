@@ -0,0 +1,128 @@
+package com.bollin1206.superbigimage.view;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 共享缓存管理
+ * One memory budget for every scene of the process, e.g. the pages of a ViewPager,
+ * instead of a percent of the heap for each of them. Every scene keeps its own tiles,
+ * keyed by level and region within its image, but how many bytes of tiles it may keep
+ * is its share of the budget by {@link Visibility}: the page in front gets most of it,
+ * its neighbours a little so that the tiles around where they were left stay, hidden
+ * scenes none. A scene whose share shrinks drops its least recently used tiles at once.
+ * <p>Neighbours keep their sample, and a hidden scene that becomes a neighbour gets
+ * its sample back in the background, so swiping to it shows the image at once. Hidden
+ * scenes let their sample go. Both happen on the sample thread of {@link PortableScene},
+ * in the order asked, and a request superseded before it ran is dropped.</p>
+ */
+public class SceneCacheManager {
+    private static final String TAG = SceneCacheManager.class.getSimpleName();
+
+    /**
+     * The share of the whole heap all scenes together may use, see {@link MemoryBudget}
+     */
+    static final int DEFAULT_PERCENT = 10;
+
+    public enum Visibility {
+        /**
+         * Shown, e.g. the current page
+         */
+        FOREGROUND(8),
+        /**
+         * Likely shown next, e.g. the pages left and right of the current one
+         */
+        NEIGHBOUR(1),
+        /**
+         * Not shown any time soon
+         */
+        HIDDEN(0);
+
+        final int weight;
+
+        Visibility(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static SceneCacheManager instance;
+
+    /**
+     * The manager of the process
+     */
+    public static synchronized SceneCacheManager getInstance() {
+        if (instance == null)
+            instance = new SceneCacheManager(DEFAULT_PERCENT);
+        return instance;
+    }
+
+    private final MemoryBudget budget;
+    private final Map<Scene, Visibility> scenes = new IdentityHashMap<Scene, Visibility>();
+
+    /**
+     * @param percent the share of the heap all scenes together may use
+     */
+    public SceneCacheManager(int percent) {
+        budget = new MemoryBudget(percent);
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return budget;
+    }
+
+    /**
+     * Share the budget with the scene from now on
+     */
+    public synchronized void register(Scene scene, Visibility visibility) {
+        scenes.put(scene, visibility);
+        rebalance();
+        if (visibility == Visibility.HIDDEN)
+            scene.dropSample();
+    }
+
+    /**
+     * The scene goes back to its own budget, e.g. because it is no longer shown anywhere
+     */
+    public synchronized void unregister(Scene scene) {
+        if (scenes.remove(scene) == null)
+            return;
+        scene.setSharedCacheBytes(-1);
+        rebalance();
+    }
+
+    /**
+     * Move the shares around because a scene came to the front or went away
+     */
+    public synchronized void setVisibility(Scene scene, Visibility visibility) {
+        Visibility old = scenes.get(scene);
+        if (old == null || old == visibility)
+            return;
+        scenes.put(scene, visibility);
+        rebalance();
+        if (visibility == Visibility.HIDDEN)
+            scene.dropSample();
+        else if (old == Visibility.HIDDEN)
+            scene.warmSample();
+    }
+
+    public synchronized Visibility getVisibility(Scene scene) {
+        return scenes.get(scene);
+    }
+
+    /**
+     * Give every scene its share, by the weight of its visibility
+     */
+    private void rebalance() {
+        long total = budget.getCacheBytes();
+        int weights = 0;
+        for (Visibility visibility : scenes.values())
+            weights += visibility.weight;
+        for (Map.Entry<Scene, Visibility> entry : scenes.entrySet()) {
+            long share = weights == 0 ? 0 : total * entry.getValue().weight / weights;
+            entry.getKey().setSharedCacheBytes(share);
+        }
+        Platform platform = AndroidPlatform.INSTANCE;
+        if (platform.isVerbose())
+            platform.debug(TAG, String.format("%d bytes shared among %d scenes", total, scenes.size()));
+    }
+}
@@ -0,0 +1,225 @@
+package com.bollin1206.superbigimage.view;
+
+/**
+ * 几何计算
+ * The arithmetic behind the viewport and the cache window, on plain ints and floats
+ * so that it runs, and can be benchmarked, on a desktop JVM. Nothing here allocates;
+ * results go into a {@link Box} the caller owns.
+ */
+public final class SceneGeometry {
+    private SceneGeometry() {
+    }
+
+    /**
+     * A mutable rectangle, left and top inclusive, right and bottom exclusive
+     */
+    public static final class Box {
+        public int left;
+        public int top;
+        public int right;
+        public int bottom;
+
+        public void set(int left, int top, int right, int bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        public void set(Box box) {
+            set(box.left, box.top, box.right, box.bottom);
+        }
+
+        public void setEmpty() {
+            set(0, 0, 0, 0);
+        }
+
+        public int width() {
+            return right - left;
+        }
+
+        public int height() {
+            return bottom - top;
+        }
+
+        public int centerX() {
+            return (left + right) >> 1;
+        }
+
+        public int centerY() {
+            return (top + bottom) >> 1;
+        }
+
+        public boolean isEmpty() {
+            return left >= right || top >= bottom;
+        }
+
+        /**
+         * Whether box lies within this one, which isn't empty
+         */
+        public boolean contains(Box box) {
+            return left < right && top < bottom
+                    && left <= box.left && top <= box.top && right >= box.right && bottom >= box.bottom;
+        }
+
+        public static boolean intersects(Box a, Box b) {
+            return a.left < b.right && b.left < a.right && a.top < b.bottom && b.top < a.bottom;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + left + "," + top + "][" + right + "," + bottom + "]";
+        }
+    }
+
+    /**
+     * Where a side of length size may start so that it stays within 0..limit
+     */
+    public static int clampOrigin(int origin, int size, int limit) {
+        return Math.max(0, Math.min(origin, limit - size));
+    }
+
+    /**
+     * Zoom the viewport by factor around a point of the screen, keeping that point
+     * over the same spot of the scene. The viewport keeps the screen's aspect ratio,
+     * is at least minPixels and at most the scene in each direction, and stays
+     * within the scene.
+     *
+     * @param viewport the viewport in the scene before zooming
+     * @param zoom     scene pixels per screen pixel before zooming
+     * @param focusX   where the fingers are, in screen pixels
+     * @param out      set to the viewport after zooming, may be viewport
+     * @return the zoom after zooming
+     */
+    public static float zoom(Box viewport, int screenWidth, int screenHeight, float zoom, float factor,
+                             float focusX, float focusY, int sceneWidth, int sceneHeight, int minPixels, Box out) {
+        float screenWidthToHeight = (float) screenWidth / screenHeight;//宽高比
+        float screenHeightToWidth = (float) screenHeight / screenWidth;//高宽比
+        float newZoom = zoom * factor;
+        //触控位置 相对在图片上位置的焦点坐标
+        float sceneFocusX = viewport.left + (focusX / screenWidth) * viewport.width();
+        float sceneFocusY = viewport.top + (focusY / screenHeight) * viewport.height();
+        float width = screenWidth * newZoom;
+        if (width > sceneWidth) {
+            width = sceneWidth;
+            newZoom = width / screenWidth;
+        }
+        if (width < minPixels) {
+            width = minPixels;
+            newZoom = width / screenWidth;
+        }
+        float height = width * screenHeightToWidth;
+        if (height > sceneHeight) {
+            height = sceneHeight;
+            width = height * screenWidthToHeight;
+            newZoom = width / screenWidth;
+        }
+        if (height < minPixels) {
+            height = minPixels;
+            width = height * screenWidthToHeight;
+            newZoom = width / screenWidth;
+        }
+        float left = sceneFocusX - ((focusX / screenWidth) * width);
+        float top = sceneFocusY - ((focusY / screenHeight) * height);
+        if (left < 0)
+            left = 0;
+        if (top < 0)
+            top = 0;
+        float right = left + width;
+        float bottom = top + height;
+        if (right > sceneWidth) {
+            right = sceneWidth;
+            left = right - width;
+        }
+        if (bottom > sceneHeight) {
+            bottom = sceneHeight;
+            top = bottom - height;
+        }
+        out.set((int) left, (int) top, (int) right, (int) bottom);
+        return newZoom;
+    }
+
+    /**
+     * The largest margin m, added to both the width and the height of a w x h
+     * rectangle, that still fits in the given number of pixels. This solves
+     * (w + m)(h + m) = pixels for m, which gives
+     * m = (sqrt((w - h)^2 + 4 * pixels) - (w + h)) / 2.
+     *
+     * @return the margin, 0 if even the rectangle alone doesn't fit
+     */
+    public static int solveMargin(int width, int height, double pixels) {
+        double diff = width - height;
+        long margin = (long) Math.floor((Math.sqrt(diff * diff + 4 * pixels) - (width + height)) / 2);
+        if (margin <= 0)
+            return 0;
+        // Floating point can land one off
+        while (margin > 0 && (width + margin) * (height + margin) > pixels)
+            margin--;
+        return (int) Math.min(margin, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The size of a side of length size once decoded with sampleSize
+     */
+    public static int scaledSize(int size, int sampleSize) {
+        return Math.max(1, size / sampleSize);
+    }
+
+    /**
+     * The cache window around the viewport: as much margin as the pixels allow, once
+     * decoded with sampleSize, leaning up to half the margin toward where the viewport
+     * is heading, and moved back inside the scene where it sticks out.
+     *
+     * @param pixels how many decoded pixels the window may have
+     * @param leadX  how far the viewport is expected to move horizontally, in scene pixels
+     * @param out    set to the window, may not be viewport
+     */
+    public static void cacheWindow(Box viewport, int sampleSize, double pixels, int leadX, int leadY,
+                                   int sceneWidth, int sceneHeight, Box out) {
+        int viewportWidth = viewport.width();
+        int viewportHeight = viewport.height();
+
+        // Calculate the max size of the margins to fit in our memory budget. The window is
+        // decoded at 1/sampleSize, so solve in decoded pixels and scale back to the scene.
+        int margin = solveMargin(scaledSize(viewportWidth, sampleSize), scaledSize(viewportHeight, sampleSize), pixels);
+        int mw = (int) Math.min((long) margin * sampleSize, Integer.MAX_VALUE);
+        int mh = mw;
+
+        // Trim the margins if they're too big.
+        if (viewportWidth + mw > sceneWidth) // viewport width + margin width > width of the image
+            mw = Math.max(0, sceneWidth - viewportWidth);
+        if (viewportHeight + mh > sceneHeight) // viewport height + margin height > height of the image
+            mh = Math.max(0, sceneHeight - viewportHeight);
+
+        // Lean the margins toward where the viewport is heading, but keep it inside
+        int shiftX = Math.max(-(mw >> 1), Math.min(leadX, mw >> 1));
+        int shiftY = Math.max(-(mh >> 1), Math.min(leadY, mh >> 1));
+
+        // Figure out the left & right based on the margin. We assume our viewport
+        // is <= our size. If that's not the case, then this logic breaks.
+        int left = viewport.left - (mw >> 1) + shiftX;
+        int right = viewport.right + (mw >> 1) + shiftX;
+        if (left < 0) {
+            right = right - left; // Add's the overage on the left side back to the right
+            left = 0;
+        }
+        if (right > sceneWidth) {
+            left = left - (right - sceneWidth); // Adds overage on right side back to left
+            right = sceneWidth;
+        }
+
+        // Figure out the top & bottom based on the margin. We assume our viewport
+        // is <= our size. If that's not the case, then this logic breaks.
+        int top = viewport.top - (mh >> 1) + shiftY;
+        int bottom = viewport.bottom + (mh >> 1) + shiftY;
+        if (top < 0) {
+            bottom = bottom - top; // Add's the overage on the top back to the bottom
+            top = 0;
+        }
+        if (bottom > sceneHeight) {
+            top = top - (bottom - sceneHeight); // Adds overage on bottom back to top
+            bottom = sceneHeight;
+        }
+        out.set(left, top, right, bottom);
+    }
+}
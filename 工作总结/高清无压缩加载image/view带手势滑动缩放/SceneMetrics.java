@@ -0,0 +1,306 @@
+package com.bollin1206.superbigimage.view;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 运行指标
+ * Counts what a {@link Scene} does while it is shown: how long tile decodes take,
+ * how many frames were drawn from tiles and how many had to fall back to the
+ * blurry sample, how long the cache spends in each state, how many bytes were
+ * decoded and how long frames take to draw. Recording is off until
+ * {@link #setEnabled(boolean)}, and costs an uncontended lock per event when on.
+ * How long opening took until the first pixel and until the first sharp frame is
+ * recorded always, once per scene.
+ * Read it with {@link #snapshot()}, or get a snapshot after every cache fill
+ * through an {@link OnFillListener}.
+ */
+public class SceneMetrics {
+    public interface OnFillListener {
+        /**
+         * A cache fill finished. Called on a decode thread, keep it short.
+         */
+        void onFill(Snapshot snapshot);
+    }
+
+    /**
+     * Durations bucketed by powers of two microseconds. Bucket i counts the
+     * durations from 2^i up to 2^(i+1) microseconds, the first one from 0.
+     */
+    public static final class Histogram {
+        public static final int BUCKETS = 25;
+
+        private final long[] counts = new long[BUCKETS];
+        private long count = 0;
+        private long sumMicros = 0;
+        private long maxMicros = 0;
+
+        void record(long micros) {
+            if (micros < 0)
+                micros = 0;
+            int bucket = 63 - Long.numberOfLeadingZeros(micros | 1);
+            counts[Math.min(bucket, BUCKETS - 1)]++;
+            count++;
+            sumMicros += micros;
+            if (micros > maxMicros)
+                maxMicros = micros;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] = 0;
+            count = 0;
+            sumMicros = 0;
+            maxMicros = 0;
+        }
+
+        Histogram copy() {
+            Histogram copy = new Histogram();
+            System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+            copy.count = count;
+            copy.sumMicros = sumMicros;
+            copy.maxMicros = maxMicros;
+            return copy;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getBucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        public long getMeanMicros() {
+            return count == 0 ? 0 : sumMicros / count;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * @param percentile 0..100
+         * @return the upper bound of the bucket the percentile falls in
+         */
+        public long getPercentileMicros(int percentile) {
+            long rank = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(1L << (i + 1), maxMicros);
+            }
+            return maxMicros;
+        }
+    }
+
+    /**
+     * A copy of the metrics at one moment, safe to keep and export
+     */
+    public static final class Snapshot {
+        public final Histogram decodeLatency;
+        /**
+         * The decodes of the last cache fill only
+         */
+        public final Histogram lastFillDecodeLatency;
+        public final Histogram frameTime;
+        public final long tileFrames;
+        public final long sampleFallbackFrames;
+        public final long tilesDecoded;
+        public final long bytesDecoded;
+        /**
+         * Milliseconds spent in each cache state, by state name
+         */
+        public final Map<String, Long> stateMillis;
+        /**
+         * The name of the cache state the snapshot was taken in
+         */
+        public final String state;
+        /**
+         * From when opening started until the first frame that showed something of the
+         * image, a preview or the sample, and until the first frame drawn from tiles
+         * only. -1 until then.
+         */
+        public final long timeToFirstPixelMillis;
+        public final long timeToSharpMillis;
+
+        Snapshot(SceneMetrics metrics) {
+            decodeLatency = metrics.decodeLatency.copy();
+            lastFillDecodeLatency = metrics.lastFillDecodeLatency.copy();
+            frameTime = metrics.frameTime.copy();
+            tileFrames = metrics.tileFrames;
+            sampleFallbackFrames = metrics.sampleFallbackFrames;
+            tilesDecoded = metrics.tilesDecoded;
+            bytesDecoded = metrics.bytesDecoded;
+            long now = metrics.platform.uptimeMillis();
+            LinkedHashMap<String, Long> millis = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < metrics.stateNames.length; i++) {
+                long spent = metrics.stateMillis[i];
+                if (i == metrics.state)
+                    spent += now - metrics.stateSince;
+                millis.put(metrics.stateNames[i], spent);
+            }
+            stateMillis = millis;
+            state = metrics.stateNames[metrics.state];
+            timeToFirstPixelMillis = metrics.timeToFirstPixel;
+            timeToSharpMillis = metrics.timeToSharp;
+        }
+
+        /**
+         * @return the share of frames that had to show the sample somewhere, 0..1
+         */
+        public float getSampleFallbackRatio() {
+            long frames = tileFrames + sampleFallbackFrames;
+            return frames == 0 ? 0f : (float) sampleFallbackFrames / frames;
+        }
+    }
+
+    private final Platform platform;
+    private volatile boolean enabled = false;
+    private volatile OnFillListener onFillListener;
+
+    private final Histogram decodeLatency = new Histogram();
+    private Histogram lastFillDecodeLatency = new Histogram();
+    private final Histogram currentFillDecodeLatency = new Histogram();
+    private final Histogram frameTime = new Histogram();
+    private long tileFrames = 0;
+    private long sampleFallbackFrames = 0;
+    private long tilesDecoded = 0;
+    private long bytesDecoded = 0;
+
+    private final String[] stateNames;
+    private final long[] stateMillis;
+    private int state = 0;
+    private long stateSince;
+
+    private long openStarted;
+    private volatile boolean content = false;
+    private long timeToFirstPixel = -1;
+    private long timeToSharp = -1;
+
+    SceneMetrics(String[] stateNames, Platform platform) {
+        this.stateNames = stateNames;
+        this.stateMillis = new long[stateNames.length];
+        this.platform = platform;
+        stateSince = openStarted = platform.uptimeMillis();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setOnFillListener(OnFillListener listener) {
+        onFillListener = listener;
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Start over, e.g. after exporting a snapshot. The open times stay.
+     */
+    public synchronized void reset() {
+        decodeLatency.reset();
+        lastFillDecodeLatency.reset();
+        currentFillDecodeLatency.reset();
+        frameTime.reset();
+        tileFrames = 0;
+        sampleFallbackFrames = 0;
+        tilesDecoded = 0;
+        bytesDecoded = 0;
+        for (int i = 0; i < stateMillis.length; i++)
+            stateMillis[i] = 0;
+        stateSince = platform.uptimeMillis();
+    }
+
+    void onDecoded(long micros, int bytes) {
+        if (!enabled)
+            return;
+        synchronized (this) {
+            decodeLatency.record(micros);
+            currentFillDecodeLatency.record(micros);
+            tilesDecoded++;
+            bytesDecoded += bytes;
+        }
+    }
+
+    void onFillStarted() {
+        if (!enabled)
+            return;
+        synchronized (this) {
+            currentFillDecodeLatency.reset();
+        }
+    }
+
+    void onFillDone() {
+        if (!enabled)
+            return;
+        Snapshot snapshot = null;
+        OnFillListener listener = onFillListener;
+        synchronized (this) {
+            lastFillDecodeLatency = currentFillDecodeLatency.copy();
+            currentFillDecodeLatency.reset();
+            if (listener != null)
+                snapshot = new Snapshot(this);
+        }
+        if (snapshot != null)
+            listener.onFill(snapshot);
+    }
+
+    /**
+     * @param micros         how long the frame took to draw
+     * @param sampleFallback whether some of it had to be drawn from the sample
+     */
+    void onFrame(long micros, boolean sampleFallback) {
+        if (timeToSharp < 0 && content)
+            onFrameAfterContent(sampleFallback);
+        if (!enabled)
+            return;
+        synchronized (this) {
+            frameTime.record(micros);
+            if (sampleFallback)
+                sampleFallbackFrames++;
+            else
+                tileFrames++;
+        }
+    }
+
+    private synchronized void onFrameAfterContent(boolean sampleFallback) {
+        long now = platform.uptimeMillis();
+        if (timeToFirstPixel < 0)
+            timeToFirstPixel = now - openStarted;
+        if (!sampleFallback && timeToSharp < 0)
+            timeToSharp = now - openStarted;
+    }
+
+    /**
+     * Opening the scene started at this uptime, see {@link Snapshot#timeToFirstPixelMillis}
+     */
+    synchronized void onOpenStarted(long uptimeMillis) {
+        openStarted = uptimeMillis;
+    }
+
+    /**
+     * The scene has something of the image to show from now on
+     */
+    void onContent() {
+        content = true;
+    }
+
+    /**
+     * The cache moved to the state of this index in the names given to the constructor.
+     * Recorded even while disabled, it is cheap and keeps the time in the current state right.
+     */
+    synchronized void onState(int newState) {
+        long now = platform.uptimeMillis();
+        stateMillis[state] += now - stateSince;
+        state = newState;
+        stateSince = now;
+    }
+}
@@ -0,0 +1,253 @@
+package com.bollin1206.superbigimage.view;
+
+/**
+ * 瓦片缓存
+ * Keeps decoded tiles of the scene keyed by (level, col, row). A tile of level n is
+ * decoded with an inSampleSize of 2^n, so it covers {@link #TILE_SIZE} &lt;&lt; n pixels
+ * of the scene in each direction while its bitmap is at most {@link #TILE_SIZE} square.
+ * Tiles are evicted in least-recently-used order once the byte budget is exceeded,
+ * and their bitmaps go to the {@link BitmapPool} for the next decodes to reuse.
+ * Looking a tile up allocates nothing: the keys are primitive longs, and both the
+ * hash chains and the LRU order are lists threaded through the tiles themselves,
+ * since every visible tile is looked up on every frame.
+ * <p>This class is not thread safe, the owner is expected to hold its own lock.</p>
+ */
+class TileCache {
+    /**
+     * Width and height of a tile bitmap in pixels
+     */
+    static final int TILE_SIZE = 256;
+    /**
+     * The coarsest level of the pyramid, 1/128 of the scene
+     */
+    static final int MAX_LEVEL = 7;
+
+    interface OnEvictListener {
+        /**
+         * The tile was dropped to stay within the budget
+         */
+        void onEvicted(Tile tile);
+    }
+
+    static class Tile {
+        final int level;
+        final int col;
+        final int row;
+        final long key;
+        /**
+         * The area of the scene this tile covers
+         */
+        final SceneGeometry.Box sceneRect = new SceneGeometry.Box();
+        final Pixels pixels;
+        final int bytes;
+        /**
+         * The neighbours in LRU order, toward the eldest and toward the newest
+         */
+        Tile older;
+        Tile newer;
+        /**
+         * The next tile of the same hash bucket
+         */
+        Tile next;
+
+        Tile(int level, int col, int row, SceneGeometry.Box sceneRect, Pixels pixels) {
+            this.level = level;
+            this.col = col;
+            this.row = row;
+            this.key = key(level, col, row);
+            this.sceneRect.set(sceneRect);
+            this.pixels = pixels;
+            this.bytes = pixels.getByteCount();
+        }
+    }
+
+    /**
+     * Hash buckets of the tiles by key, a power of two of them
+     */
+    private Tile[] buckets = new Tile[64];
+    private int count = 0;
+    /**
+     * The least and the most recently used tile
+     */
+    private Tile eldest;
+    private Tile newest;
+    private final BitmapPool bitmapPool;
+    private final OnEvictListener onEvictListener;
+    private long budgetBytes = Long.MAX_VALUE;
+    private long usedBytes = 0;
+
+    TileCache(BitmapPool bitmapPool, OnEvictListener onEvictListener) {
+        this.bitmapPool = bitmapPool;
+        this.onEvictListener = onEvictListener;
+    }
+
+    /**
+     * The pyramid level whose resolution is closest to, but not coarser than,
+     * what the screen shows at the given zoom.
+     *
+     * @param zoom scene pixels per screen pixel, see {@link PortableScene.Viewport#getZoom()}
+     */
+    static int levelForZoom(float zoom) {
+        int level = 0;
+        while (level < MAX_LEVEL && (2 << level) <= zoom)
+            level++;
+        return level;
+    }
+
+    /**
+     * Set out to the area of the scene covered by the tile, trimmed to the scene size
+     */
+    static void getTileRect(int level, int col, int row, int sceneWidth, int sceneHeight, SceneGeometry.Box out) {
+        int span = TILE_SIZE << level;
+        int left = col * span;
+        int top = row * span;
+        out.set(left, top, Math.min(left + span, sceneWidth), Math.min(top + span, sceneHeight));
+    }
+
+    static long key(int level, int col, int row) {
+        return ((long) level << 56) | ((long) col << 28) | row;
+    }
+
+    void setBudget(long bytes) {
+        budgetBytes = bytes;
+        trimToBudget();
+    }
+
+    long getBudget() {
+        return budgetBytes;
+    }
+
+    long getUsedBytes() {
+        return usedBytes;
+    }
+
+    boolean contains(int level, int col, int row) {
+        return find(key(level, col, row)) != null;
+    }
+
+    /**
+     * Returns the tile or null if it is not resident. This marks the tile as recently used.
+     */
+    Tile get(int level, int col, int row) {
+        Tile tile = find(key(level, col, row));
+        if (tile != null && tile != newest) {
+            unlink(tile);
+            link(tile);
+        }
+        return tile;
+    }
+
+    void put(int level, int col, int row, SceneGeometry.Box sceneRect, Pixels pixels) {
+        Tile tile = new Tile(level, col, row, sceneRect, pixels);
+        Tile old = remove(tile.key);
+        if (old != null) {
+            unlink(old);
+            usedBytes -= old.bytes;
+            bitmapPool.put(old.pixels);
+        }
+        insert(tile);
+        link(tile);
+        usedBytes += tile.bytes;
+        trimToBudget();
+    }
+
+    void clear() {
+        for (Tile tile = eldest; tile != null; tile = tile.newer)
+            bitmapPool.put(tile.pixels);
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = null;
+        count = 0;
+        eldest = newest = null;
+        usedBytes = 0;
+    }
+
+    private void trimToBudget() {
+        // always keep the most recent tile, even if it alone is over the budget
+        while (usedBytes > budgetBytes && eldest != newest) {
+            Tile tile = eldest;
+            unlink(tile);
+            remove(tile.key);
+            usedBytes -= tile.bytes;
+            onEvictListener.onEvicted(tile);
+            bitmapPool.put(tile.pixels);
+        }
+    }
+
+    private int bucketOf(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 40) & (buckets.length - 1);
+    }
+
+    private Tile find(long key) {
+        for (Tile tile = buckets[bucketOf(key)]; tile != null; tile = tile.next)
+            if (tile.key == key)
+                return tile;
+        return null;
+    }
+
+    private void insert(Tile tile) {
+        if (count >= buckets.length - (buckets.length >> 2))
+            grow();
+        int bucket = bucketOf(tile.key);
+        tile.next = buckets[bucket];
+        buckets[bucket] = tile;
+        count++;
+    }
+
+    private Tile remove(long key) {
+        int bucket = bucketOf(key);
+        Tile previous = null;
+        for (Tile tile = buckets[bucket]; tile != null; previous = tile, tile = tile.next) {
+            if (tile.key != key)
+                continue;
+            if (previous == null)
+                buckets[bucket] = tile.next;
+            else
+                previous.next = tile.next;
+            tile.next = null;
+            count--;
+            return tile;
+        }
+        return null;
+    }
+
+    private void grow() {
+        Tile[] old = buckets;
+        buckets = new Tile[old.length * 2];
+        for (Tile head : old) {
+            Tile tile = head;
+            while (tile != null) {
+                Tile next = tile.next;
+                int bucket = bucketOf(tile.key);
+                tile.next = buckets[bucket];
+                buckets[bucket] = tile;
+                tile = next;
+            }
+        }
+    }
+
+    /**
+     * Append the tile as the most recently used
+     */
+    private void link(Tile tile) {
+        tile.older = newest;
+        tile.newer = null;
+        if (newest != null)
+            newest.newer = tile;
+        else
+            eldest = tile;
+        newest = tile;
+    }
+
+    private void unlink(Tile tile) {
+        if (tile.older != null)
+            tile.older.newer = tile.newer;
+        else
+            eldest = tile.newer;
+        if (tile.newer != null)
+            tile.newer.older = tile.older;
+        else
+            newest = tile.older;
+        tile.older = tile.newer = null;
+    }
+}
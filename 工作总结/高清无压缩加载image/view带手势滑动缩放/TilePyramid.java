@@ -0,0 +1,180 @@
+package com.bollin1206.superbigimage.view;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 瓦片金字塔文件格式
+ * The layout of a pre-tiled image file, shared by the tools/ builder that writes it
+ * and {@link TilePyramidScene} that reads it. Plain Java, so it runs on a desktop JVM.
+ * <p>A file is a fixed header, an index of every tile, and then the encoded tiles
+ * one after another. Level n of the pyramid is the image scaled down by 2^n, the
+ * same as a tile of level n in {@link TileCache}, cut into tiles of
+ * {@link #getTileSize()} pixels row by row. An index entry is the offset and the
+ * length of the tile's encoded bytes, so any tile is found with one read of the
+ * index, which is small enough to map, and one read of the tile. A level is
+ * rounded up, so that it has as many tiles as {@link TileCache} has at that level
+ * and an odd last pixel of the level above still shows.</p>
+ * <pre>
+ * int magic 'SBTP', int version, int width, int height,
+ * int tileSize, int levels, int encoding, int reserved
+ * levels x rows x columns x (long offset, int length)
+ * encoded tiles
+ * </pre>
+ * All numbers are big-endian.
+ */
+public final class TilePyramid {
+    public static final int MAGIC = 0x53425450;
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 32;
+    public static final int ENTRY_BYTES = 12;
+
+    public static final int ENCODING_PNG = 0;
+    public static final int ENCODING_JPEG = 1;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int levels;
+    private final int encoding;
+    /**
+     * The index of the first tile of each level, and one past the last
+     */
+    private final int[] levelStart;
+
+    /**
+     * @param levels how many levels, level 0 is the image at full size
+     */
+    public TilePyramid(int width, int height, int tileSize, int levels, int encoding) {
+        if (width <= 0 || height <= 0 || tileSize <= 0 || levels <= 0 || levels > 31)
+            throw new IllegalArgumentException(String.format("bad pyramid %dx%d, tile %d, %d levels",
+                    width, height, tileSize, levels));
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.levels = levels;
+        this.encoding = encoding;
+        levelStart = new int[levels + 1];
+        long count = 0;
+        for (int level = 0; level < levels; level++) {
+            levelStart[level] = (int) count;
+            count += (long) getColumns(level) * getRows(level);
+            if (count > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("too many tiles");
+        }
+        levelStart[levels] = (int) count;
+    }
+
+    /**
+     * How many levels an image of this size gets: every level down to maxLevel that
+     * still has at least a pixel in each direction
+     */
+    public static int levelsFor(int width, int height, int maxLevel) {
+        int levels = 1;
+        while (levels <= maxLevel && (width >> levels) > 0 && (height >> levels) > 0)
+            levels++;
+        return levels;
+    }
+
+    /**
+     * Read the header at the buffer's position
+     *
+     * @throws IOException if it isn't a pyramid this version can read
+     */
+    public static TilePyramid readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC)
+            throw new IOException("not a tile pyramid");
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("tile pyramid version " + version + " not supported");
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int tileSize = buffer.getInt();
+        int levels = buffer.getInt();
+        int encoding = buffer.getInt();
+        buffer.getInt();
+        try {
+            return new TilePyramid(width, height, tileSize, levels, encoding);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Write the header at the buffer's position
+     */
+    public void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(width)
+                .putInt(height)
+                .putInt(tileSize)
+                .putInt(levels)
+                .putInt(encoding)
+                .putInt(0);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * The size of the image at the level, rounded up
+     */
+    public int getLevelWidth(int level) {
+        return (width + (1 << level) - 1) >> level;
+    }
+
+    public int getLevelHeight(int level) {
+        return (height + (1 << level) - 1) >> level;
+    }
+
+    public int getColumns(int level) {
+        return (getLevelWidth(level) + tileSize - 1) / tileSize;
+    }
+
+    public int getRows(int level) {
+        return (getLevelHeight(level) + tileSize - 1) / tileSize;
+    }
+
+    public int getTileCount() {
+        return levelStart[levels];
+    }
+
+    /**
+     * The index of a tile among all tiles, the order of the index and of a fresh build
+     */
+    public int tileIndex(int level, int col, int row) {
+        return levelStart[level] + row * getColumns(level) + col;
+    }
+
+    /**
+     * Where the index entry of the tile is, from the start of the file
+     */
+    public long entryPosition(int level, int col, int row) {
+        return HEADER_BYTES + (long) tileIndex(level, col, row) * ENTRY_BYTES;
+    }
+
+    /**
+     * Where the encoded tiles start, from the start of the file
+     */
+    public long dataPosition() {
+        return HEADER_BYTES + (long) getTileCount() * ENTRY_BYTES;
+    }
+}
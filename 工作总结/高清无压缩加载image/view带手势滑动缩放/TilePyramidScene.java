@@ -0,0 +1,263 @@
+package com.bollin1206.superbigimage.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 预切片场景
+ * Shows an image that was cut into a {@link TilePyramid} file beforehand, see
+ * tools/TilePyramidBuilder. Every tile the cache asks for is stored in the file at
+ * exactly that level, so showing it is one read and the decode of one small tile,
+ * wherever it is in the image and however big the image is. Opening reads the header,
+ * maps the index and puts the sample together from the tiles of one coarse level,
+ * so it takes as long for a gigapixel image as for a small one.
+ */
+public class TilePyramidScene extends Scene {
+    private static final String TAG = TilePyramidScene.class.getSimpleName();
+
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+    /**
+     * The sample is the finest level that has at most this many pixels
+     */
+    private static final int SAMPLE_PIXELS = 2 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final TilePyramid pyramid;
+    /**
+     * The header and the index
+     */
+    private final MappedByteBuffer index;
+    private final int sampleLevel;
+    private volatile Bitmap sampleBitmap;
+
+    /**
+     * The encoded bytes of a tile, one buffer per decode thread
+     */
+    private final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    public TilePyramidScene(String path) throws IOException {
+        this(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Open the pyramid file at the path. The scene keeps it open until {@link #close()}.
+     *
+     * @param decodeThreads How many tiles to decode at the same time
+     */
+    public TilePyramidScene(String path, int decodeThreads) throws IOException {
+        super(decodeThreads);
+        file = new RandomAccessFile(path, "r");
+        try {
+            channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(TilePyramid.HEADER_BYTES);
+            readFully(header, 0);
+            header.flip();
+            pyramid = TilePyramid.readHeader(header);
+            if (pyramid.getTileSize() != TileCache.TILE_SIZE)
+                throw new IOException(String.format("tiles of %d pixels, %d expected",
+                        pyramid.getTileSize(), TileCache.TILE_SIZE));
+            if (pyramid.dataPosition() > channel.size())
+                throw new IOException("truncated tile pyramid");
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, pyramid.dataPosition());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        setSceneSize(pyramid.getWidth(), pyramid.getHeight());//设置scene尺寸为整个原始加载图片的尺寸
+
+        int level = 0;
+        while (level < pyramid.getLevels() - 1
+                && (long) pyramid.getLevelWidth(level) * pyramid.getLevelHeight(level) > SAMPLE_PIXELS)
+            level++;
+        sampleLevel = level;
+        setSampleBitmap(decodeSample());
+
+        initialize();
+    }
+
+    /**
+     * Close the file. The scene can't decode anymore afterwards.
+     */
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+
+    /**
+     * Decode one tile of the file
+     *
+     * @param reuse a bitmap of the tile's size to decode into, or null
+     * @return the tile, or null if it can't be read
+     */
+    private Bitmap decodeTile(int level, int col, int row, Bitmap reuse) {
+        long entry = pyramid.entryPosition(level, col, row);
+        long offset = index.getLong((int) entry);
+        int length = index.getInt((int) entry + 8);
+        byte[] bytes = readBuffer.get();
+        if (bytes.length < length) {
+            bytes = new byte[length];
+            readBuffer.set(bytes);
+        }
+        try {
+            readFully(ByteBuffer.wrap(bytes, 0, length), offset);
+        } catch (IOException e) {
+            Log.e(TAG, String.format("can't read tile %d/%d/%d", level, col, row), e);
+            releaseBitmap(reuse);
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = CONFIG;
+        options.inMutable = true;
+        options.inBitmap = reuse;
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder couldn't reuse the bitmap, decode into a new one
+            releaseBitmap(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, length, options);
+        }
+    }
+
+    /**
+     * Put the tiles of the sample level together
+     */
+    private Bitmap decodeSample() {
+        Bitmap sample = Bitmap.createBitmap(
+                pyramid.getLevelWidth(sampleLevel), pyramid.getLevelHeight(sampleLevel), CONFIG);
+        Canvas canvas = new Canvas(sample);
+        int tileSize = pyramid.getTileSize();
+        for (int row = 0; row < pyramid.getRows(sampleLevel); row++) {
+            for (int col = 0; col < pyramid.getColumns(sampleLevel); col++) {
+                Bitmap tile = decodeTile(sampleLevel, col, row, null);
+                if (tile == null)
+                    continue;
+                canvas.drawBitmap(tile, col * tileSize, row * tileSize, null);
+                tile.recycle();
+            }
+        }
+        return sample;
+    }
+
+    private void setSampleBitmap(Bitmap bitmap) {
+        sampleBitmap = bitmap;
+        getMemoryBudget().setSampleBytes(bitmap == null ? 0 : bitmap.getRowBytes() * bitmap.getHeight());
+        notifyChanged();
+    }
+
+    @Override
+    protected void trimSample() {
+        // The draw thread may still be drawing it, leave recycling to the GC
+        setSampleBitmap(null);
+    }
+
+    @Override
+    protected void restoreSample() {
+        if (sampleBitmap == null)
+            setSampleBitmap(decodeSample());
+    }
+
+    /**
+     * The cache only asks for the tiles of {@link TileCache}, which are the tiles of the file
+     */
+    @Override
+    protected Bitmap fillCache(Rect origin, int sampleSize) {
+        int level = Integer.numberOfTrailingZeros(sampleSize);
+        if (level >= pyramid.getLevels()) {
+            Log.w(TAG, "no level " + level + " in the pyramid");
+            return null;
+        }
+        int span = TileCache.TILE_SIZE << level;
+        int col = origin.left / span;
+        int row = origin.top / span;
+        if (col >= pyramid.getColumns(level) || row >= pyramid.getRows(level)) {
+            Log.w(TAG, String.format("no tile %d,%d at level %d in the pyramid", col, row, level));
+            return null;
+        }
+        // The size of the tile in the file, whose level is rounded up
+        int tileSize = pyramid.getTileSize();
+        Bitmap reuse = obtainBitmap(
+                Math.min(tileSize, pyramid.getLevelWidth(level) - col * tileSize),
+                Math.min(tileSize, pyramid.getLevelHeight(level) - row * tileSize),
+                CONFIG);
+        return decodeTile(level, col, row, reuse);
+    }
+
+    /**
+     * Only the draw thread draws the sample, once per frame, so these are reused
+     */
+    private final Canvas sampleCanvas = new Canvas();
+    private final Rect sampleSrcRect = new Rect();
+    private final Rect sampleDstRect = new Rect();
+
+    @Override
+    protected void drawSampleRectIntoBitmap(Bitmap currentViewportBitmap, Rect windowViewportRect) {
+        Bitmap sampleBitmap = this.sampleBitmap;
+        if (currentViewportBitmap != null && sampleBitmap != null) {
+            Canvas canvas = sampleCanvas;
+            canvas.setBitmap(currentViewportBitmap);
+            int left = windowViewportRect.left >> sampleLevel;
+            int top = windowViewportRect.top >> sampleLevel;
+            sampleSrcRect.set(left, top,
+                    left + (windowViewportRect.width() >> sampleLevel),
+                    top + (windowViewportRect.height() >> sampleLevel));
+            sampleDstRect.set(0, 0, canvas.getWidth(), canvas.getHeight());
+            canvas.drawBitmap(sampleBitmap, sampleSrcRect, sampleDstRect, null);
+        }
+    }
+
+    private final Rect calculatedCacheWindowRect = new Rect();
+    private final SceneGeometry.Box viewportBox = new SceneGeometry.Box();
+    private final SceneGeometry.Box cacheWindowBox = new SceneGeometry.Box();
+
+    @Override
+    protected Rect calculateCacheWindow(Rect viewportRect, int sampleSize, int leadX, int leadY) {
+        double pixels = (double) getMemoryBudget().getWindowBytes() / Scene.bytesPerPixel(CONFIG);
+        Point sceneSizePoint = getSceneSize();
+        viewportBox.set(viewportRect.left, viewportRect.top, viewportRect.right, viewportRect.bottom);
+        SceneGeometry.cacheWindow(viewportBox, sampleSize, pixels, leadX, leadY,
+                sceneSizePoint.x, sceneSizePoint.y, cacheWindowBox);
+        calculatedCacheWindowRect.set(cacheWindowBox.left, cacheWindowBox.top, cacheWindowBox.right, cacheWindowBox.bottom);
+        return calculatedCacheWindowRect;
+    }
+
+    @Override
+    protected void fillCacheOutOfMemoryError(OutOfMemoryError error) {
+        getMemoryBudget().onOutOfMemory();
+        Log.e(TAG, String.format("caught oom -- cache now at %d percent.", getMemoryBudget().getPercent()));
+    }
+
+    @Override
+    protected void drawComplete(Canvas canvas) {
+    }
+}
@@ -0,0 +1,75 @@
+package com.bollin1206.superbigimage.view;
+
+/**
+ * 更新请求队列
+ * Hands requests to refill the cache from whoever notices the viewport left the
+ * cache window to the cache thread. Every request gets the next generation number.
+ * Requests that pile up while the thread is busy, e.g. during a pinch, merge into
+ * the latest one: the thread only ever takes the newest generation.
+ */
+final class UpdateQueue {
+    private int generation = 0;
+    private int taken = 0;
+    private int coalesced = 0;
+    private boolean closed = false;
+
+    /**
+     * Ask for a refill
+     *
+     * @return the generation of the request
+     */
+    synchronized int request() {
+        generation++;
+        notifyAll();
+        return generation;
+    }
+
+    /**
+     * Wait for a request newer than the last one taken
+     *
+     * @return its generation, or -1 once the queue is closed
+     */
+    synchronized int take() {
+        while (!closed && taken == generation) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // only close() ends the wait
+            }
+        }
+        if (closed)
+            return -1;
+        coalesced += generation - taken - 1;
+        taken = generation;
+        return generation;
+    }
+
+    /**
+     * The generation of the latest request, taken or not
+     */
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return how many requests were merged into a later one without being taken
+     */
+    synchronized int getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * Open the queue for a new cache thread. Requests made while it was closed are kept.
+     */
+    synchronized void open() {
+        closed = false;
+    }
+
+    /**
+     * Wake the cache thread for good
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}